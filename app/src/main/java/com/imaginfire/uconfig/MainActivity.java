@@ -19,13 +19,16 @@ package com.imaginfire.uconfig;
 
 import android.Manifest;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.Menu;
@@ -36,11 +39,20 @@ import android.widget.Switch;
 
 import com.imaginfire.uconfig.discovery.DiscoveryFragment;
 import com.imaginfire.uconfig.editor.EditorFragment;
+import com.imaginfire.uconfig.http.Diagnostics;
+import com.imaginfire.uconfig.http.RequestExecutor;
+import com.imaginfire.uconfig.model.SchemaCache;
+import com.imaginfire.uconfig.model.ValueConflator;
 import com.imaginfire.uconfig.wifi.WifiConnector;
 
+import java.io.File;
+import java.util.Locale;
+
 public class MainActivity extends AppCompatActivity implements DiscoveryFragment.OnDeviceSelectedListener {
     private static final int PERMISSION_LOCATION_REQUEST = 800;
     private static final String TAG = "MainActivity";
+    // seconds offered for how long a variable value is shown before it is read again
+    private static final int[] STALE_AFTER_CHOICES = {0, 10, 30, 60, 300};
 
     private WifiConnector connector = null;
     private Switch wifi_switch = null;
@@ -50,6 +62,9 @@ public class MainActivity extends AppCompatActivity implements DiscoveryFragment
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        SchemaCache.initialise(new File(getCacheDir(), "schemas"));
+        RequestExecutor.setPipelining(PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(getString(R.string.pref_pipelining), false));
 
         if (savedInstanceState == null) {
             FragmentTransaction t = getSupportFragmentManager().beginTransaction();
@@ -84,6 +99,11 @@ public class MainActivity extends AppCompatActivity implements DiscoveryFragment
         if (item == null) {
             throw new RuntimeException("Could not find wifi_switch_action menu item.");
         }
+        MenuItem pipelining = menu.findItem(R.id.pipelining_action);
+        if (pipelining != null) {
+            pipelining.setChecked(PreferenceManager.getDefaultSharedPreferences(this)
+                    .getBoolean(getString(R.string.pref_pipelining), false));
+        }
         wifi_switch = item.getActionView().findViewById(R.id.switch_wifi);
         if (wifi_switch == null) {
             throw new RuntimeException("Could not find switch_wifi in wifi_switch_action's layout.");
@@ -114,6 +134,59 @@ public class MainActivity extends AppCompatActivity implements DiscoveryFragment
         return true;
     }
 
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.diagnostics_action) {
+            new AlertDialog.Builder(this)
+                    .setTitle(R.string.menu_diagnostics)
+                    .setMessage(Diagnostics.describe() + String.format(Locale.ROOT,
+                            "%d variable broadcasts, %d replaced by a newer value before display\n",
+                            ValueConflator.getOffered(), ValueConflator.getCoalesced()))
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show();
+            return true;
+        }
+        if (item.getItemId() == R.id.stale_after_action) {
+            chooseStaleAfter();
+            return true;
+        }
+        if (item.getItemId() == R.id.pipelining_action) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            PreferenceManager.getDefaultSharedPreferences(this).edit()
+                    .putBoolean(getString(R.string.pref_pipelining), enabled).apply();
+            RequestExecutor.setPipelining(enabled);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    // the editor listens for the preference, so the choice applies immediately
+    private void chooseStaleAfter() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        String key = getString(R.string.pref_stale_after);
+        int current = prefs.getInt(key, getResources().getInteger(R.integer.value_stale_after));
+        CharSequence[] items = new CharSequence[STALE_AFTER_CHOICES.length];
+        int checked = -1;
+        for (int i = 0; i < STALE_AFTER_CHOICES.length; i++) {
+            if (STALE_AFTER_CHOICES[i] == 0) {
+                items[i] = getString(R.string.stale_after_never);
+            } else {
+                items[i] = getString(R.string.stale_after_seconds, STALE_AFTER_CHOICES[i]);
+            }
+            if (STALE_AFTER_CHOICES[i] == current) {
+                checked = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_stale_after)
+                .setSingleChoiceItems(items, checked, (dialog, which) -> {
+                    prefs.edit().putInt(key, STALE_AFTER_CHOICES[which]).apply();
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
     @Override
     public void onDeviceSelected(String api, String name) {
         FragmentTransaction t = getSupportFragmentManager().beginTransaction();
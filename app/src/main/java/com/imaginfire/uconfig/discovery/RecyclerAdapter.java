@@ -18,6 +18,7 @@
 package com.imaginfire.uconfig.discovery;
 
 import android.arch.lifecycle.LifecycleOwner;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.constraint.ConstraintLayout;
 import android.support.v7.widget.RecyclerView;
@@ -31,9 +32,28 @@ import com.imaginfire.uconfig.model.DeviceViewModel;
 
 class RecyclerAdapter extends RecyclerView.Adapter<RecyclerViewHolder> {
     private static final String TAG = "RecyclerAdaptor";
+    private static final int TTL_REFRESH_INTERVAL = 500;
     private final DeviceViewModel devices_model;
     private final LifecycleOwner owner;
     private OnItemSelectedListener listener;
+    private RecyclerView recyclerView = null;
+    // single refresh for all visible rows, instead of each device pushing its ttl
+    private final Runnable ttl_refresh = new Runnable() {
+        @Override
+        public void run() {
+            if (recyclerView == null) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            for (int i = 0; i < recyclerView.getChildCount(); i++) {
+                RecyclerView.ViewHolder h = recyclerView.getChildViewHolder(recyclerView.getChildAt(i));
+                if (h instanceof RecyclerViewHolder) {
+                    ((RecyclerViewHolder) h).refreshTimeout(now);
+                }
+            }
+            recyclerView.postDelayed(this, TTL_REFRESH_INTERVAL);
+        }
+    };
 
     RecyclerAdapter(LifecycleOwner o, DeviceViewModel model) {
         devices_model = model;
@@ -66,13 +86,29 @@ class RecyclerAdapter extends RecyclerView.Adapter<RecyclerViewHolder> {
             holder.setDeviceName(d.getName());
             holder.setLocation(d.getApiLocation());
             holder.setTimeoutMax(Device.max_ttl);
-            d.getTTL().observe(owner, holder::setTimeoutRemain);
+            holder.setDevice(d);
+            holder.refreshTimeout(SystemClock.elapsedRealtime());
         } else {
             holder.setDeviceName("Error loading device");
             holder.setLocation("");
+            holder.setDevice(null);
         }
     }
 
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        this.recyclerView = recyclerView;
+        recyclerView.postDelayed(ttl_refresh, TTL_REFRESH_INTERVAL);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        recyclerView.removeCallbacks(ttl_refresh);
+        this.recyclerView = null;
+    }
+
     @Override
     public int getItemCount() {
         if (devices_model.getDeviceList().getValue() != null) {
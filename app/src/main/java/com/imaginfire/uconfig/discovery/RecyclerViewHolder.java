@@ -23,10 +23,12 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.imaginfire.uconfig.R;
+import com.imaginfire.uconfig.model.Device;
 
 public class RecyclerViewHolder extends RecyclerView.ViewHolder {
     // each data item is just a string in this case
     private final ConstraintLayout view;
+    private Device device = null;
     RecyclerViewHolder(ConstraintLayout v) {
         super(v);
         view = v;
@@ -51,4 +53,15 @@ public class RecyclerViewHolder extends RecyclerView.ViewHolder {
         ProgressBar p = view.findViewById(R.id.progress_timeout);
         p.setProgress(x);
     }
+
+    public void setDevice(Device d) {
+        device = d;
+    }
+
+    // ttl is derived from the last seen beacon each time the row is drawn
+    public void refreshTimeout(long now) {
+        if (device != null) {
+            setTimeoutRemain(device.getTTL(now));
+        }
+    }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.editor;
+
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.design.widget.Snackbar;
+import android.support.v4.app.Fragment;
+import android.support.v7.app.AlertDialog;
+import android.util.Log;
+import android.view.View;
+
+import com.imaginfire.uconfig.R;
+import com.imaginfire.uconfig.http.RequestExecutor;
+import com.imaginfire.uconfig.model.BlobTransfer;
+import com.imaginfire.uconfig.model.SchemaViewModel;
+import com.imaginfire.uconfig.model.Variable;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+
+// copies the content of blob variables to and from documents chosen with the
+// system picker. progress is shown in a snackbar, which also allows the
+// transfer to be cancelled, or resumed after it stops. one transfer runs at a
+// time and it is cancelled when the editor is destroyed.
+class BlobTransfers implements BlobTransfer.Listener {
+    private static final String TAG = "BlobTransfers";
+    private static final String PARAM_PICKING = "com.imaginfire.uconfig.editor.BlobTransfers.PICKING";
+    private static final int REQUEST_DOWNLOAD = 1;
+    private static final int REQUEST_UPLOAD = 2;
+
+    private final Fragment fragment;
+    private final SchemaViewModel schema;
+    // variable waiting for the user to choose a document, kept by name as
+    // the picker can outlive the fragment
+    private String picking = null;
+    private Variable variable = null;
+    private boolean upload = false;
+    private BlobTransfer transfer = null;
+    private Closeable document = null;
+    private long total = -1;
+    private boolean stopped = false;
+    private boolean destroyed = false;
+    private Snackbar snackbar = null;
+
+    BlobTransfers(Fragment f, SchemaViewModel model, Bundle savedInstanceState) {
+        fragment = f;
+        schema = model;
+        if (savedInstanceState != null) {
+            picking = savedInstanceState.getString(PARAM_PICKING);
+        }
+    }
+
+    // asks the user whether to download or upload v, then which document to use
+    void choose(@NonNull Variable v) {
+        if (transfer != null && !stopped) {
+            message(fragment.getString(R.string.transfer_busy));
+            return;
+        }
+        if (v.isReadable() && v.isWritable()) {
+            Context c = fragment.getContext();
+            if (c == null) {
+                return;
+            }
+            CharSequence[] items = {
+                    fragment.getString(R.string.button_download),
+                    fragment.getString(R.string.button_upload)};
+            new AlertDialog.Builder(c)
+                    .setTitle(v.getName())
+                    .setItems(items, (dialog, which) -> pick(v, which == 0))
+                    .show();
+        } else if (v.isReadable() || v.isWritable()) {
+            pick(v, v.isReadable());
+        }
+    }
+
+    private void pick(Variable v, boolean download) {
+        Intent i;
+        if (download) {
+            i = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            i.setType("application/octet-stream");
+            i.putExtra(Intent.EXTRA_TITLE, v.getName());
+        } else {
+            i = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            i.setType("*/*");
+        }
+        i.addCategory(Intent.CATEGORY_OPENABLE);
+        picking = v.getName();
+        fragment.startActivityForResult(i, download ? REQUEST_DOWNLOAD : REQUEST_UPLOAD);
+    }
+
+    // returns false if the result is not for a document picked here
+    boolean onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != REQUEST_DOWNLOAD && requestCode != REQUEST_UPLOAD) {
+            return false;
+        }
+        String name = picking;
+        picking = null;
+        Context c = fragment.getContext();
+        if (resultCode != Activity.RESULT_OK || data == null || data.getData() == null ||
+                name == null || c == null) {
+            return true;
+        }
+        Variable v = find(name);
+        if (v == null) {
+            Log.w(TAG, "Variable no longer in schema: " + name);
+            return true;
+        }
+        boolean download = requestCode == REQUEST_DOWNLOAD;
+        ContentResolver resolver = c.getContentResolver();
+        Uri uri = data.getData();
+        // the document provider can be slow, e.g. when the document is remote
+        RequestExecutor.DISK.execute(() -> {
+            ParcelFileDescriptor fd = null;
+            try {
+                fd = resolver.openFileDescriptor(uri, download ? "w" : "r");
+            } catch (FileNotFoundException | SecurityException e) {
+                Log.w(TAG, "Unable to open document: " + uri, e);
+            }
+            ParcelFileDescriptor opened = fd;
+            RequestExecutor.MAIN_THREAD.execute(() -> start(v, download, opened));
+        });
+        return true;
+    }
+
+    private Variable find(String name) {
+        List<Variable> vars = schema.getVariables().getValue();
+        if (vars != null) {
+            for (Variable v : vars) {
+                if (v.getName().equals(name)) {
+                    return v;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void start(Variable v, boolean download, ParcelFileDescriptor fd) {
+        if (fd == null) {
+            message(fragment.getString(R.string.transfer_open_fail));
+            return;
+        }
+        if (destroyed || (transfer != null && !stopped)) {
+            close(fd);
+            if (!destroyed) {
+                message(fragment.getString(R.string.transfer_busy));
+            }
+            return;
+        }
+        abandon();
+        variable = v;
+        upload = !download;
+        total = -1;
+        stopped = false;
+        if (download) {
+            ParcelFileDescriptor.AutoCloseOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd);
+            document = out;
+            transfer = v.download(out.getChannel(), 0, this);
+        } else {
+            ParcelFileDescriptor.AutoCloseInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(fd);
+            document = in;
+            transfer = v.upload(in.getChannel(), 0, this);
+        }
+        showProgress(0);
+    }
+
+    @Override
+    public void onProgress(long transferred, long total) {
+        this.total = total;
+        if (transfer != null) {
+            showProgress(transferred);
+        }
+    }
+
+    @Override
+    public void onComplete(long total) {
+        if (transfer == null) {
+            return;
+        }
+        Variable v = variable;
+        boolean uploaded = upload;
+        finish();
+        message(fragment.getString(R.string.transfer_complete, v.getName()));
+        if (uploaded && v.isReadable()) {
+            // refresh the length shown for the blob
+            v.startRead(null);
+        }
+    }
+
+    @Override
+    public void onError(long transferred) {
+        if (transfer == null) {
+            return;
+        }
+        stopped = true;
+        View view = fragment.getView();
+        if (view != null) {
+            snackbar = Snackbar.make(view,
+                    fragment.getString(R.string.transfer_failed, variable.getName()),
+                    Snackbar.LENGTH_INDEFINITE)
+                    .setAction(R.string.button_resume, btn -> {
+                        if (transfer != null && stopped) {
+                            stopped = false;
+                            transfer.resume();
+                            showProgress(transfer.getTransferred());
+                        }
+                    });
+            snackbar.show();
+        }
+    }
+
+    private void showProgress(long transferred) {
+        View view = fragment.getView();
+        if (view == null || variable == null) {
+            return;
+        }
+        String text;
+        if (total > 0) {
+            text = fragment.getString(R.string.transfer_progress, variable.getName(),
+                    (int) (transferred * 100 / total));
+        } else {
+            text = fragment.getString(R.string.transfer_progress_bytes, variable.getName(), transferred);
+        }
+        if (snackbar == null || !snackbar.isShown()) {
+            snackbar = Snackbar.make(view, text, Snackbar.LENGTH_INDEFINITE)
+                    .setAction(R.string.button_cancel, btn -> abandon());
+            snackbar.show();
+        } else {
+            snackbar.setText(text);
+        }
+    }
+
+    // cancels any transfer, stopped or running, without reporting it
+    private void abandon() {
+        if (transfer != null) {
+            transfer.cancel();
+            finish();
+        }
+    }
+
+    private void finish() {
+        transfer = null;
+        variable = null;
+        stopped = false;
+        if (document != null) {
+            close(document);
+            document = null;
+        }
+        if (snackbar != null) {
+            snackbar.dismiss();
+            snackbar = null;
+        }
+    }
+
+    private void message(String text) {
+        View view = fragment.getView();
+        if (view != null) {
+            Snackbar.make(view, text, Snackbar.LENGTH_LONG).show();
+        }
+    }
+
+    private static void close(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close document", e);
+        }
+    }
+
+    void onSaveInstanceState(@NonNull Bundle outState) {
+        outState.putString(PARAM_PICKING, picking);
+    }
+
+    void onDestroy() {
+        destroyed = true;
+        abandon();
+    }
+}
@@ -18,7 +18,11 @@
 package com.imaginfire.uconfig.editor;
 
 import android.arch.lifecycle.ViewModelProviders;
+import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.constraint.ConstraintLayout;
 import android.support.design.widget.BottomNavigationView;
@@ -43,11 +47,29 @@ public class EditorFragment extends Fragment {
     private static final String TAG = "EditorFragment";
     private static final String ARG_API_LOCATION = "api_location";
     private static final String PARAM_SELECTED_MENU = "com.imaginfire.uconfig.editor.SELECTED_MENU_ITEM_ID";
+    private static final int TTL_REFRESH_INTERVAL = 500;
 
     private VariableAdapter var_adapter = null;
     private ActionAdapter act_adapter = null;
     private Device device = null;
     private SchemaViewModel schema = null;
+    private BlobTransfers transfers = null;
+    private SharedPreferences prefs = null;
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefs_changed = (p, key) -> {
+        if (getString(R.string.pref_stale_after).equals(key)) {
+            applyStaleAfter();
+        }
+    };
+    private ProgressBar ttl = null;
+    private final Runnable ttl_refresh = new Runnable() {
+        @Override
+        public void run() {
+            if (ttl != null && device != null) {
+                ttl.setProgress(device.getTTL(SystemClock.elapsedRealtime()));
+                ttl.postDelayed(this, TTL_REFRESH_INTERVAL);
+            }
+        }
+    };
 
     public static EditorFragment newInstance(String api) {
         EditorFragment fragment = new EditorFragment();
@@ -90,6 +112,7 @@ public class EditorFragment extends Fragment {
             throw new RuntimeException("Missing parameter from fragment initialisation.");
         }
         schema = ViewModelProviders.of(this).get(device.getApiLocation(), SchemaViewModel.class);
+        transfers = new BlobTransfers(this, schema, savedInstanceState);
     }
 
     private RecyclerView.Adapter<? extends RecyclerView.ViewHolder> getAdapter(int resid) {
@@ -115,24 +138,22 @@ public class EditorFragment extends Fragment {
             throw new ClassCastException("fragment_editor.xml does not contain ConstraintLayout at root.");
         }
         ConstraintLayout c = (ConstraintLayout)v;
-        ProgressBar ttl = c.findViewById(R.id.progress_timeout);
+        ttl = c.findViewById(R.id.progress_timeout);
         ttl.setMax(Device.max_ttl);
-        //ttl.setProgress(device.getTTL().getValue());
-        device.getTTL().observe(this, i -> {
-            if (i == null || i == 0) {
+        ttl_refresh.run();
+        device.getExpired().observe(this, expired -> {
+            if (expired != null && expired) {
                 // device has disappeared from network, close fragment
                 FragmentManager fragmentManager = getFragmentManager();
                 if (fragmentManager != null) {
                     getFragmentManager().popBackStack();
-                    return;
                 } else {
                     throw new RuntimeException("Fragment must be attached to activity.");
                 }
             }
-            ttl.setProgress(i);
         });
 
-        var_adapter = new VariableAdapter(this, schema, savedInstanceState);
+        var_adapter = new VariableAdapter(this, schema, transfers, savedInstanceState);
         act_adapter = new ActionAdapter(this, schema, savedInstanceState);
 
         v = c.findViewById(R.id.schema_recycler);
@@ -160,14 +181,51 @@ public class EditorFragment extends Fragment {
 
         // initialise will trigger callbacks via livedata
         schema.initialise(device);
+        prefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
+        prefs.registerOnSharedPreferenceChangeListener(prefs_changed);
+        applyStaleAfter();
         return c;
     }
 
+    private void applyStaleAfter() {
+        schema.setStaleAfter(prefs.getInt(getString(R.string.pref_stale_after),
+                getResources().getInteger(R.integer.value_stale_after)));
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (ttl != null) {
+            ttl.removeCallbacks(ttl_refresh);
+            ttl = null;
+        }
+        if (prefs != null) {
+            prefs.unregisterOnSharedPreferenceChangeListener(prefs_changed);
+            prefs = null;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (transfers != null) {
+            transfers.onDestroy();
+        }
+    }
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (transfers == null || !transfers.onActivityResult(requestCode, resultCode, data)) {
+            super.onActivityResult(requestCode, resultCode, data);
+        }
+    }
+
     @Override
     public void onSaveInstanceState(@NonNull Bundle outState) {
         super.onSaveInstanceState(outState);
         var_adapter.onSaveInstanceState(outState);
         act_adapter.onSaveInstanceState(outState);
+        transfers.onSaveInstanceState(outState);
         if (getView() != null) {
             BottomNavigationView t = getView().findViewById(R.id.toolbar_schema);
             outState.putInt(PARAM_SELECTED_MENU, t.getSelectedItemId());
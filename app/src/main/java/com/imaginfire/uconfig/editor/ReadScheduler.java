@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.editor;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import com.imaginfire.uconfig.model.OnAction;
+import com.imaginfire.uconfig.model.Variable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// decides when the variables shown in a list are read. nothing is read while the
+// list is scrolling, once it settles the rows on screen are read from the top
+// down. a row that leaves the screen has its read cancelled so the device is
+// not kept busy with values that will not be seen.
+class ReadScheduler extends RecyclerView.OnScrollListener {
+    // how long the list has to be still before reads are sent
+    private static final int SETTLE_DELAY = 150;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flush = this::flush;
+    private final LinkedHashMap<VariableViewHolder, Variable> wanted = new LinkedHashMap<>();
+    private final OnAction fail;
+    private RecyclerView recycler = null;
+
+    ReadScheduler(OnAction fail) {
+        this.fail = fail;
+    }
+
+    void attach(@NonNull RecyclerView r) {
+        recycler = r;
+        r.addOnScrollListener(this);
+    }
+
+    void detach(@NonNull RecyclerView r) {
+        r.removeOnScrollListener(this);
+        recycler = null;
+        clear();
+    }
+
+    // ask for the variable shown by the row to be read once the row is on screen
+    void request(VariableViewHolder holder, Variable v) {
+        wanted.put(holder, v);
+        schedule();
+    }
+
+    // the row has left the screen, anything it asked for is no longer needed
+    void cancel(VariableViewHolder holder, Variable v) {
+        wanted.remove(holder);
+        v.cancelRead();
+    }
+
+    // forget all requests, e.g. when the variables of the list are replaced
+    void clear() {
+        handler.removeCallbacks(flush);
+        for (Map.Entry<VariableViewHolder, Variable> e : wanted.entrySet()) {
+            e.getValue().cancelRead();
+        }
+        wanted.clear();
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView r, int state) {
+        if (state == RecyclerView.SCROLL_STATE_IDLE) {
+            schedule();
+        } else {
+            handler.removeCallbacks(flush);
+        }
+    }
+
+    private void schedule() {
+        handler.removeCallbacks(flush);
+        if (recycler == null || recycler.getScrollState() == RecyclerView.SCROLL_STATE_IDLE) {
+            handler.postDelayed(flush, SETTLE_DELAY);
+        }
+    }
+
+    private void flush() {
+        int first = 0;
+        int last = Integer.MAX_VALUE;
+        if (recycler != null && recycler.getLayoutManager() instanceof LinearLayoutManager) {
+            LinearLayoutManager m = (LinearLayoutManager) recycler.getLayoutManager();
+            if (m.findFirstVisibleItemPosition() != RecyclerView.NO_POSITION) {
+                first = m.findFirstVisibleItemPosition();
+                last = m.findLastVisibleItemPosition();
+            }
+        }
+
+        // rows attached but outside of the visible range (e.g. laid out ahead
+        // of a scroll) stay wanted until they are shown or detached
+        List<Map.Entry<VariableViewHolder, Variable>> reads = new ArrayList<>();
+        Iterator<Map.Entry<VariableViewHolder, Variable>> i = wanted.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<VariableViewHolder, Variable> e = i.next();
+            int position = e.getKey().getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                i.remove();
+            } else if (position >= first && position <= last) {
+                reads.add(e);
+                i.remove();
+            }
+        }
+        reads.sort((a, b) -> Integer.compare(
+                a.getKey().getAdapterPosition(), b.getKey().getAdapterPosition()));
+        for (Map.Entry<VariableViewHolder, Variable> e : reads) {
+            // a broadcast may have provided the value while waiting
+            if (e.getValue().getValue().getValue() == null) {
+                e.getValue().startRead(fail);
+            }
+        }
+    }
+}
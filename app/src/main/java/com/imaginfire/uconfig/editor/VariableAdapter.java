@@ -38,12 +38,25 @@ class VariableAdapter extends BaseAdapter<VariableViewHolder> {
 
     private final SchemaViewModel schema_model;
     private final LifecycleOwner owner;
+    private final ReadScheduler reads;
+    private final BlobTransfers transfers;
     private int expand = -1;
 
-    VariableAdapter(LifecycleOwner o, SchemaViewModel model, Bundle savedInstanceState) {
+    VariableAdapter(LifecycleOwner o, SchemaViewModel model, BlobTransfers t, Bundle savedInstanceState) {
         schema_model = model;
         owner = o;
-        schema_model.getVariables().observe(owner, list -> this.notifyDataSetChanged());
+        transfers = t;
+        reads = new ReadScheduler(() -> {
+            synchronized (this) {
+                if (recyclerView != null) {
+                    Snackbar.make(recyclerView, R.string.snack_read_fail, Snackbar.LENGTH_LONG).show();
+                }
+            }
+        });
+        schema_model.getVariables().observe(owner, list -> {
+            reads.clear();
+            this.notifyDataSetChanged();
+        });
 
         if (savedInstanceState != null) {
             expand = savedInstanceState.getInt(PARAM_EXPANDED, -1);
@@ -59,7 +72,13 @@ class VariableAdapter extends BaseAdapter<VariableViewHolder> {
         v.setOnClickListener( view -> {
             if (parent instanceof RecyclerView) {
                 if (schema_model.getVariables().getValue() != null) {
-                    onSelected(holder);
+                    // blobs are not edited in place, their content is moved to or from a file
+                    Variable var = holder.getVariable();
+                    if (var != null && var.getType() == Value.Type.Blob) {
+                        transfers.choose(var);
+                    } else {
+                        onSelected(holder);
+                    }
                 }
             }
         });
@@ -71,20 +90,21 @@ class VariableAdapter extends BaseAdapter<VariableViewHolder> {
         if (schema_model.getVariables().getValue() != null) {
             holder.clearState();
             Variable v = schema_model.getVariables().getValue().get(position);
-            holder.setVariableName(v.getName());
+            Variable previous = holder.getVariable();
+            if (previous != null && previous != v) {
+                reads.cancel(holder, previous);
+            }
+            holder.setVariable(v);
             v.getValue().observe(holder, holder::setValue);
             v.getBusy().observe(holder, holder::setLoading);
-            if (v.getValue().getValue() == null && v.isReadable()) {
-                v.startRead(() -> {
-                    synchronized (this) {
-                        if (recyclerView != null) {
-                            Snackbar.make(recyclerView, R.string.snack_read_fail, Snackbar.LENGTH_LONG).show();
-                        }
-                    }
-                });
+            // rows already on screen are not attached again, so request the read now
+            if (holder.itemView.isAttachedToWindow()) {
+                requestRead(holder);
             }
             holder.setExpanded(position == expand);
-            holder.setEditable(v.getType(), v.isWritable(), btn -> {
+            // blobs can only be written with an upload
+            boolean editable = v.isWritable() && v.getType() != Value.Type.Blob;
+            holder.setEditable(v.getType(), editable, btn -> {
                 Value value = holder.getValue();
                 Log.d(TAG, "Setting to text: " + value);
                 if (!v.startWrite(value, () -> {
@@ -112,6 +132,39 @@ class VariableAdapter extends BaseAdapter<VariableViewHolder> {
         }
     }
 
+    @Override
+    public void onViewAttachedToWindow(@NonNull VariableViewHolder holder) {
+        super.onViewAttachedToWindow(holder);
+        requestRead(holder);
+    }
+
+    @Override
+    public void onViewDetachedFromWindow(@NonNull VariableViewHolder holder) {
+        super.onViewDetachedFromWindow(holder);
+        if (holder.getVariable() != null) {
+            reads.cancel(holder, holder.getVariable());
+        }
+    }
+
+    @Override
+    public synchronized void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        reads.attach(recyclerView);
+    }
+
+    @Override
+    public synchronized void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        reads.detach(recyclerView);
+    }
+
+    private void requestRead(VariableViewHolder holder) {
+        Variable v = holder.getVariable();
+        if (v != null && v.getValue().getValue() == null && v.isReadable()) {
+            reads.request(holder, v);
+        }
+    }
+
     @Override
     public int getItemCount() {
         if (schema_model.getVariables().getValue() != null) {
@@ -30,6 +30,7 @@ import android.widget.TextView;
 import com.imaginfire.uconfig.R;
 import com.imaginfire.uconfig.editor.controls.EditValue;
 import com.imaginfire.uconfig.model.Value;
+import com.imaginfire.uconfig.model.Variable;
 
 public class VariableViewHolder extends BaseViewHolder {
     private static final int S_LOADING = 0x01;
@@ -53,6 +54,7 @@ public class VariableViewHolder extends BaseViewHolder {
     private final int backgroundcolor;
     private final int selectedbackgroundcolor;
     private int state = 0;
+    private Variable variable = null;
 
     VariableViewHolder(LifecycleOwner owner, ConstraintLayout v) {
         super(owner, v);
@@ -108,8 +110,14 @@ public class VariableViewHolder extends BaseViewHolder {
         selectedbackgroundcolor = typedValue.data;
     }
 
-    void setVariableName(String s) {
-        var_name.setText(s);
+    // the variable last bound to this row
+    Variable getVariable() {
+        return variable;
+    }
+
+    void setVariable(Variable v) {
+        variable = v;
+        var_name.setText(v.getName());
     }
 
     void setValue(Value v) {
@@ -79,6 +79,10 @@ public class EditValue extends AppCompatEditText {
             case String:
                 setInputType(InputType.TYPE_CLASS_TEXT);
                 break;
+            case Blob:
+                // blobs are transferred as files, not typed in
+                setInputType(InputType.TYPE_NULL);
+                break;
         }
     }
 
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.http;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+
+// tracks the health of a device from the outcome of exchanges with it. after
+// FAILURE_THRESHOLD exchanges in a row fail the breaker opens, and requests fail
+// straight away without contacting the device. once COOL_DOWN has passed a
+// single request is let through (half open), if it succeeds the breaker closes
+// otherwise it opens again. a beacon from the device closes the breaker as the
+// device is known to be alive.
+public class CircuitBreaker {
+    private static final String TAG = "CircuitBreaker";
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long COOL_DOWN = 10000;
+    private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String host;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long opened_at = 0;
+    private boolean probing = false;
+
+    private CircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    @NonNull
+    public static CircuitBreaker forUrl(@NonNull String url) {
+        String host;
+        try {
+            host = new URL(url).getAuthority();
+        } catch (MalformedURLException e) {
+            Log.w(TAG, "Unable to find host of url: " + url);
+            host = "";
+        }
+        return forHost(host);
+    }
+
+    @NonNull
+    public static CircuitBreaker forHost(@NonNull String host) {
+        return breakers.computeIfAbsent(host, CircuitBreaker::new);
+    }
+
+    // false if the request should fail without contacting the device
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case OPEN:
+                if (SystemClock.elapsedRealtime() - opened_at < COOL_DOWN) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probing = false;
+                // no break!
+            case HALF_OPEN:
+                if (probing) {
+                    return false;
+                }
+                probing = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    // the device responded, whatever the response was
+    synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            Log.i(TAG, host + " is responding again");
+        }
+        close();
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= FAILURE_THRESHOLD)) {
+            Log.i(TAG, host + " is not responding, failing requests for " + COOL_DOWN + "ms");
+            state = State.OPEN;
+            opened_at = SystemClock.elapsedRealtime();
+            probing = false;
+        }
+    }
+
+    // the request was cancelled before the outcome was known
+    synchronized void onAbandoned() {
+        probing = false;
+    }
+
+    // called when the device is known to be alive
+    public synchronized void reset() {
+        close();
+    }
+
+    @NonNull
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        failures = 0;
+        probing = false;
+    }
+
+    @Override
+    public String toString() {
+        return host;
+    }
+}
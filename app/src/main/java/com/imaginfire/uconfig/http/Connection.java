@@ -0,0 +1,586 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.http;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+// a single http/1.1 keep-alive connection to a device. exchanges are sent over
+// the same socket and the socket is transparently reopened when the device
+// closes it. with a pipeline depth above one, requests from concurrent callers
+// are written without waiting for earlier responses, responses are read back
+// in order. pipelining only takes effect if the HostLimiter of the device
+// allows more than one request in flight, see RequestExecutor.setPipelining.
+public class Connection {
+    private static final String TAG = "Connection";
+    // reopen sockets that have not been used for a while instead of finding out they are stale
+    private static final int IDLE_TIMEOUT = 5000;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int BUFFER_SIZE = 4096;
+    private static final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+    private static volatile int default_pipeline_depth = 1;
+
+    private final String host;
+    private final int port;
+    private final String authority;
+    private final RttEstimator rtt = new RttEstimator();
+    private int pipeline_depth;
+
+    // state of the current socket, guarded by this. the sockets are also read
+    // without the lock by abort, which only closes them
+    private volatile Socket socket = null;
+    private volatile Socket connecting = null;
+    private InputStream in = null;
+    private OutputStream out = null;
+    private int generation = 0;
+    private int completed = 0;
+    private long next_ticket = 0;
+    private long serving = 0;
+    private int outstanding = 0;
+    private long last_used = 0;
+    private boolean closed_retryable = false;
+    private boolean closed_by_device = false;
+
+    public interface ResponseHandler<T> {
+        // body is only valid until this returns, unread content is discarded
+        T onResponse(int code, String content_type, @NonNull InputStream body) throws IOException;
+    }
+
+    private Connection(String host, int port, String authority, int pipeline_depth) {
+        this.host = host;
+        this.port = port;
+        this.authority = authority;
+        this.pipeline_depth = pipeline_depth;
+    }
+
+    @NonNull
+    public static Connection forUrl(@NonNull URL url) {
+        return connections.computeIfAbsent(url.getAuthority(), a -> new Connection(
+                url.getHost(),
+                url.getPort() == -1 ? url.getDefaultPort() : url.getPort(),
+                a,
+                default_pipeline_depth));
+    }
+
+    // connections to all devices contacted so far
+    @NonNull
+    static Collection<Connection> all() {
+        return connections.values();
+    }
+
+    // closes the connection to a device that is no longer in use
+    public static void close(@NonNull URL url) {
+        Connection c = connections.remove(url.getAuthority());
+        if (c != null) {
+            synchronized (c) {
+                c.closeSocket(false);
+            }
+        }
+    }
+
+    // applies to all devices, including those already contacted
+    static void setDefaultPipelineDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be at least one.");
+        }
+        default_pipeline_depth = depth;
+        for (Connection c : connections.values()) {
+            c.setPipelineDepth(depth);
+        }
+    }
+
+    synchronized void setPipelineDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be at least one.");
+        }
+        pipeline_depth = depth;
+        notifyAll();
+    }
+
+    @NonNull
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    @Override
+    public String toString() {
+        return authority;
+    }
+
+    // as below, with timeouts derived from the measured round trip time. only
+    // idempotent requests are timed, the response to any other request can
+    // include the time the device took to carry it out. nothing is sent once
+    // aborted returns true
+    public <T> T exchange(@NonNull String target, boolean idempotent, @Nullable BooleanSupplier aborted,
+                          @NonNull ResponseHandler<T> handler) throws IOException {
+        return exchange(target, rtt.getConnectTimeout(),
+                idempotent ? rtt.getReadTimeout() : rtt.getCommandTimeout(), idempotent, aborted, handler);
+    }
+
+    // sends a GET for target (path and query) and passes the response to the handler
+    public <T> T exchange(@NonNull String target, int connect_timeout, int read_timeout,
+                          @NonNull ResponseHandler<T> handler) throws IOException {
+        return exchange(target, connect_timeout, read_timeout, false, null, handler);
+    }
+
+    private <T> T exchange(@NonNull String target, int connect_timeout, int read_timeout, boolean timed,
+                           @Nullable BooleanSupplier aborted, @NonNull ResponseHandler<T> handler)
+            throws IOException {
+        byte[] request = ("GET " + target + " HTTP/1.1\r\n" +
+                "Host: " + authority + "\r\n" +
+                "Connection: keep-alive\r\n" +
+                "Accept: application/json, */*\r\n" +
+                "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        for (int attempt = 1; ; attempt++) {
+            int gen;
+            boolean reused;
+            Socket s;
+            InputStream input;
+            boolean queued = false;
+            synchronized (this) {
+                gen = generation;
+                try {
+                    while (outstanding >= pipeline_depth) {
+                        wait();
+                    }
+                    if (socket != null && outstanding == 0
+                            && SystemClock.elapsedRealtime() - last_used > IDLE_TIMEOUT) {
+                        closeSocket(true);
+                    } else if (socket != null && socket.isClosed()) {
+                        // aborted while no exchange was reading from it
+                        closeSocket(false);
+                    }
+                    if (socket == null) {
+                        try {
+                            connect(connect_timeout);
+                        } catch (SocketTimeoutException e) {
+                            rtt.timedOut();
+                            throw e;
+                        }
+                    }
+                    // abort does not wait for the lock, so it may have been called
+                    // while this waited for it or connected
+                    if (aborted != null && aborted.getAsBoolean()) {
+                        throw new InterruptedIOException("Exchange with " + authority + " aborted");
+                    }
+                    reused = completed > 0;
+                    try {
+                        out.write(request);
+                        out.flush();
+                    } catch (IOException e) {
+                        closeSocket(reused);
+                        if (reused && attempt < MAX_ATTEMPTS) {
+                            continue;
+                        }
+                        throw e;
+                    }
+                    long ticket = next_ticket++;
+                    gen = generation;
+                    outstanding++;
+                    queued = true;
+                    while (gen == generation && serving != ticket) {
+                        wait();
+                    }
+                    if (gen != generation) {
+                        if (closed_by_device && generation == gen + 1) {
+                            // the device answered an earlier request and closed the socket, this
+                            // one was never processed. not a failure so does not use an attempt.
+                            attempt--;
+                            continue;
+                        }
+                        // an earlier response on this socket failed
+                        if (closed_retryable && generation == gen + 1 && attempt < MAX_ATTEMPTS) {
+                            continue;
+                        }
+                        throw new IOException("Connection to " + authority + " lost");
+                    }
+                    s = socket;
+                    input = in;
+                } catch (InterruptedException e) {
+                    if (queued && gen == generation) {
+                        // the ticket of this exchange will never be served, so
+                        // nothing behind it on the socket can be either
+                        closeSocket(false);
+                    }
+                    throw new InterruptedIOException("Interrupted while waiting for " + authority);
+                }
+            }
+
+            // this exchange is now at the head of the socket, only this thread reads from it
+            boolean received = false;
+            try {
+                s.setSoTimeout(read_timeout);
+                // when pipelined the device may have started on this request
+                // earlier, so this under estimates, which is safe for timeouts
+                long head_at = SystemClock.elapsedRealtime();
+                Head head = readHead(input);
+                received = true;
+                if (timed) {
+                    rtt.sample(SystemClock.elapsedRealtime() - head_at);
+                }
+                Body body = openBody(head, input);
+                T result = handler.onResponse(head.code, head.content_type, body);
+                body.drain();
+                synchronized (this) {
+                    if (gen == generation) {
+                        completed++;
+                        serving++;
+                        outstanding--;
+                        last_used = SystemClock.elapsedRealtime();
+                        if (!head.keep_alive || body.untilClose()) {
+                            // the device will not process anything else sent on this socket
+                            closeSocket(true);
+                            closed_by_device = true;
+                        }
+                        notifyAll();
+                    }
+                }
+                return result;
+            } catch (IOException e) {
+                if (timed && e instanceof SocketTimeoutException) {
+                    rtt.timedOut();
+                }
+                boolean retry;
+                synchronized (this) {
+                    if (gen == generation) {
+                        // a reused socket that is closed before responding was stale
+                        closeSocket(!received && reused);
+                    }
+                    retry = closed_retryable && generation == gen + 1 && attempt < MAX_ATTEMPTS;
+                }
+                if (retry) {
+                    Log.d(TAG, "Stale connection to " + authority + ", retrying");
+                    continue;
+                }
+                throw e;
+            } catch (RuntimeException | Error e) {
+                // e.g. from a decoder. the position in the stream is unknown and
+                // the exchanges queued behind this one must not wait forever.
+                synchronized (this) {
+                    if (gen == generation) {
+                        closeSocket(false);
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    // closes the socket, any exchange that is in progress on it fails. the lock
+    // is held while connecting, so this does not take it, it is called on the
+    // main thread. the exchange that fails cleans up the state of the socket.
+    public void abort() {
+        close(connecting);
+        close(socket);
+    }
+
+    private void close(Socket s) {
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Error while closing connection to " + authority, e);
+            }
+        }
+    }
+
+    private void connect(int connect_timeout) throws IOException {
+        Socket s = new Socket();
+        // published before connecting so abort can close it
+        connecting = s;
+        try {
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(host, port), connect_timeout);
+            in = new BufferedInputStream(s.getInputStream(), BUFFER_SIZE);
+            out = new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE);
+        } catch (IOException e) {
+            s.close();
+            connecting = null;
+            throw e;
+        }
+        socket = s;
+        connecting = null;
+        completed = 0;
+        next_ticket = 0;
+        serving = 0;
+        outstanding = 0;
+        last_used = SystemClock.elapsedRealtime();
+    }
+
+    // retryable is true if requests that were sent but not answered have not been processed
+    private void closeSocket(boolean retryable) {
+        close(socket);
+        socket = null;
+        in = null;
+        out = null;
+        generation++;
+        closed_retryable = retryable;
+        closed_by_device = false;
+        outstanding = 0;
+        notifyAll();
+    }
+
+    private static Head readHead(InputStream in) throws IOException {
+        String status = readLine(in);
+        if (status == null) {
+            throw new EOFException("Connection closed before response");
+        }
+        String[] parts = status.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new ProtocolException("Invalid status line: " + status);
+        }
+        Head head = new Head();
+        try {
+            head.code = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid status code: " + status);
+        }
+        head.keep_alive = !parts[0].equals("HTTP/1.0");
+
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            switch (name) {
+                case "content-length":
+                    try {
+                        head.content_length = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new ProtocolException("Invalid content length: " + value);
+                    }
+                    break;
+                case "content-type":
+                    head.content_type = value;
+                    break;
+                case "transfer-encoding":
+                    head.chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                    break;
+                case "connection":
+                    String v = value.toLowerCase(Locale.ROOT);
+                    if (v.contains("close")) {
+                        head.keep_alive = false;
+                    } else if (v.contains("keep-alive")) {
+                        head.keep_alive = true;
+                    }
+                    break;
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed in response headers");
+        }
+        return head;
+    }
+
+    // returns null if the stream ends before any byte of the line
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int l = sb.length();
+                if (l > 0 && sb.charAt(l - 1) == '\r') {
+                    sb.setLength(l - 1);
+                }
+                return sb.toString();
+            }
+            if (sb.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Response header line too long");
+            }
+            sb.append((char) c);
+        }
+        if (sb.length() == 0) {
+            return null;
+        }
+        throw new EOFException("Connection closed in response headers");
+    }
+
+    private static Body openBody(Head head, InputStream in) {
+        if ((head.code >= 100 && head.code < 200) || head.code == 204 || head.code == 304) {
+            return new FixedLengthBody(in, 0);
+        }
+        if (head.chunked) {
+            return new ChunkedBody(in);
+        }
+        if (head.content_length >= 0) {
+            return new FixedLengthBody(in, head.content_length);
+        }
+        return new UntilCloseBody(in);
+    }
+
+    private static class Head {
+        int code;
+        String content_type = null;
+        long content_length = -1;
+        boolean chunked = false;
+        boolean keep_alive;
+    }
+
+    private static abstract class Body extends InputStream {
+        final InputStream in;
+
+        Body(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        // skip what the handler did not read so the next response can be found
+        void drain() throws IOException {
+            byte[] b = new byte[BUFFER_SIZE];
+            while (read(b, 0, b.length) != -1) {
+                // discard
+            }
+        }
+
+        boolean untilClose() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // the socket is owned by the connection
+        }
+    }
+
+    private static class FixedLengthBody extends Body {
+        private long remaining;
+
+        FixedLengthBody(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Connection closed in response body");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    private static class ChunkedBody extends Body {
+        private long remaining = 0;
+        private boolean finished = false;
+
+        ChunkedBody(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                return -1;
+            }
+            if (remaining == 0) {
+                String size = readLine(in);
+                if (size == null) {
+                    throw new EOFException("Connection closed in chunked response");
+                }
+                int ext = size.indexOf(';');
+                if (ext >= 0) {
+                    size = size.substring(0, ext);
+                }
+                try {
+                    remaining = Long.parseLong(size.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid chunk size: " + size);
+                }
+                if (remaining == 0) {
+                    // trailers
+                    String line;
+                    do {
+                        line = readLine(in);
+                    } while (line != null && !line.isEmpty());
+                    finished = true;
+                    return -1;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Connection closed in chunked response");
+            }
+            remaining -= n;
+            if (remaining == 0) {
+                readLine(in);
+            }
+            return n;
+        }
+    }
+
+    private static class UntilCloseBody extends Body {
+        UntilCloseBody(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        void drain() {
+            // the socket is closed after this response
+        }
+
+        @Override
+        boolean untilClose() {
+            return true;
+        }
+    }
+}
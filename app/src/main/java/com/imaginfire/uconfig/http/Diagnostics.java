@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.http;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+// summary of the traffic to each device contacted so far, for display to the user
+public final class Diagnostics {
+    private Diagnostics() {
+    }
+
+    @NonNull
+    public static String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Connection c : Connection.all()) {
+            RttEstimator rtt = c.getRtt();
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(c).append('\n');
+            sb.append(String.format(Locale.ROOT, "  rtt %d ms, variance %d ms (%d samples, %d timeouts)\n",
+                    rtt.getSmoothedRtt(), rtt.getRttVariance(), rtt.getSamples(), rtt.getTimeouts()));
+            sb.append(String.format(Locale.ROOT, "  timeouts: connect %d ms, read %d ms, command %d ms\n",
+                    rtt.getConnectTimeout(), rtt.getReadTimeout(), rtt.getCommandTimeout()));
+            sb.append("  breaker ")
+                    .append(CircuitBreaker.forHost(c.toString()).getState().name().toLowerCase(Locale.ROOT))
+                    .append('\n');
+            HostLimiter limiter = HostLimiter.find(c.toString());
+            if (limiter != null) {
+                for (Priority p : Priority.values()) {
+                    HostLimiter.WaitTime w = limiter.getWaitTime(p);
+                    sb.append(String.format(Locale.ROOT, "  %s wait: %d requests, avg %d ms, max %d ms\n",
+                            p.name().toLowerCase(Locale.ROOT), w.getCount(), w.getAverage(), w.getMax()));
+                }
+            }
+        }
+        if (sb.length() == 0) {
+            sb.append("No devices contacted.\n");
+        }
+        sb.append(String.format(Locale.ROOT, "\n%d reads shared a request in progress\n", Request.getShared()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.http;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+// limits the number of requests that are in flight to a single device, requests
+// over the limit are queued and started on the request pool as others finish.
+// the queued request with the highest priority is started first, requests of
+// the same priority are started in order of arrival. a request that is in
+// flight is never interrupted to make way for another.
+// requests to different devices do not wait on each other.
+public class HostLimiter implements Executor {
+    private static final String TAG = "HostLimiter";
+    private static final ConcurrentHashMap<String, HostLimiter> limiters = new ConcurrentHashMap<>();
+    // embedded servers usually only handle a single connection at a time
+    private static volatile int default_limit = 1;
+
+    private final String host;
+    private final Executor executor;
+    private final EnumMap<Priority, ArrayDeque<Queued>> queues = new EnumMap<>(Priority.class);
+    private final EnumMap<Priority, WaitTime> waits = new EnumMap<>(Priority.class);
+    private int limit;
+    private int active = 0;
+
+    private static class Queued {
+        final Runnable runnable;
+        final long queued_at;
+
+        Queued(Runnable runnable) {
+            this.runnable = runnable;
+            queued_at = SystemClock.elapsedRealtime();
+        }
+    }
+
+    // time spent by requests in the queue before being started
+    public static class WaitTime {
+        private long count = 0;
+        private long total = 0;
+        private long max = 0;
+
+        private WaitTime() {
+        }
+
+        private WaitTime(WaitTime w) {
+            count = w.count;
+            total = w.total;
+            max = w.max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        // in milliseconds
+        public long getAverage() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        // in milliseconds
+        public long getMax() {
+            return max;
+        }
+    }
+
+    private HostLimiter(String host, int limit, Executor executor) {
+        this.host = host;
+        this.limit = limit;
+        this.executor = executor;
+        for (Priority p : Priority.values()) {
+            queues.put(p, new ArrayDeque<>());
+            waits.put(p, new WaitTime());
+        }
+    }
+
+    @NonNull
+    public static HostLimiter forUrl(@NonNull String url) {
+        String host;
+        try {
+            host = new URL(url).getAuthority();
+        } catch (MalformedURLException e) {
+            Log.w(TAG, "Unable to find host of url: " + url);
+            host = "";
+        }
+        return forHost(host);
+    }
+
+    @NonNull
+    public static HostLimiter forHost(@NonNull String host) {
+        return limiters.computeIfAbsent(host,
+                h -> new HostLimiter(h, default_limit, RequestExecutor.POOL));
+    }
+
+    // null if no request has been made to the host
+    static HostLimiter find(@NonNull String host) {
+        return limiters.get(host);
+    }
+
+    // applies to all hosts, including those already contacted
+    static void setDefaultLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("At least one request per host is required.");
+        }
+        default_limit = limit;
+        for (HostLimiter l : limiters.values()) {
+            l.setLimit(limit);
+        }
+    }
+
+    private void setLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("At least one request per host is required.");
+        }
+        synchronized (this) {
+            this.limit = limit;
+        }
+        dispatch();
+    }
+
+    // runs with VISIBLE priority
+    @Override
+    public void execute(@NonNull Runnable r) {
+        execute(r, Priority.VISIBLE);
+    }
+
+    public void execute(@NonNull Runnable r, @NonNull Priority priority) {
+        synchronized (this) {
+            queues.get(priority).add(new Queued(r));
+        }
+        dispatch();
+    }
+
+    // removes r if it has not been started yet, returns true if it was removed
+    public boolean remove(@NonNull Runnable r) {
+        synchronized (this) {
+            for (ArrayDeque<Queued> queue : queues.values()) {
+                Iterator<Queued> i = queue.iterator();
+                while (i.hasNext()) {
+                    if (i.next().runnable == r) {
+                        i.remove();
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // a copy of the queue wait times of requests started so far
+    @NonNull
+    public synchronized WaitTime getWaitTime(@NonNull Priority priority) {
+        return new WaitTime(waits.get(priority));
+    }
+
+    private void dispatch() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (active >= limit) {
+                    return;
+                }
+                Queued q = poll();
+                if (q == null) {
+                    return;
+                }
+                next = q.runnable;
+                active++;
+            }
+            executor.execute(() -> {
+                try {
+                    next.run();
+                } finally {
+                    synchronized (HostLimiter.this) {
+                        active--;
+                    }
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    // must hold the lock, records how long the request waited
+    private Queued poll() {
+        for (Priority p : Priority.values()) {
+            Queued q = queues.get(p).poll();
+            if (q != null) {
+                long waited = SystemClock.elapsedRealtime() - q.queued_at;
+                WaitTime w = waits.get(p);
+                w.count++;
+                w.total += waited;
+                w.max = Math.max(w.max, waited);
+                if (waited > 0) {
+                    Log.d(TAG, p + " request to " + host + " waited " + waited + "ms");
+                }
+                return q;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return host;
+    }
+}
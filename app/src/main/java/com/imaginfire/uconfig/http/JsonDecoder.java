@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.http;
+
+import android.util.JsonReader;
+import android.util.Log;
+import android.util.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+// decodes a json body with a streaming reader, the reader buffers internally
+// so the body is never held as a whole.
+public abstract class JsonDecoder<T> implements ResponseDecoder<T> {
+    private static final String TAG = "JsonDecoder";
+
+    @Override
+    public T decode(InputStream body) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        try {
+            return decode(reader);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // the body is not what was expected, the connection is still usable
+            Log.e(TAG, "Could not parse returned data as json.", e);
+            return null;
+        }
+    }
+
+    protected abstract T decode(JsonReader reader) throws IOException;
+}
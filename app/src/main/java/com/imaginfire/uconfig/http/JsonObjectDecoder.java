@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.http;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+// builds a JSONObject from the response as it is read, the same as JSONTokener
+// would from the whole body but without holding the text in memory first.
+public final class JsonObjectDecoder extends JsonDecoder<JSONObject> {
+    private static final String TAG = "JsonObjectDecoder";
+    public static final JsonObjectDecoder INSTANCE = new JsonObjectDecoder();
+
+    private JsonObjectDecoder() {
+    }
+
+    @Override
+    protected JSONObject decode(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            Log.e(TAG, "Not a JSON object at root");
+            return null;
+        }
+        try {
+            return readObject(reader);
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not parse returned data as json.", e);
+            return null;
+        }
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject o = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            o.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return o;
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray a = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            a.put(readValue(reader));
+        }
+        reader.endArray();
+        return a;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                return readNumber(reader.nextString());
+            default:
+                return reader.nextString();
+        }
+    }
+
+    // numbers are typed the same way as JSONTokener does
+    private static Object readNumber(String literal) {
+        if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0) {
+            try {
+                long l = Long.parseLong(literal);
+                if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                    return (int) l;
+                }
+                return l;
+            } catch (NumberFormatException e) {
+                // too large for a long, fall through to double
+            }
+        }
+        return Double.valueOf(literal);
+    }
+}
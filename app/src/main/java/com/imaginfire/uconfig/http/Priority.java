@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.http;
+
+// the order in which queued requests to a device are started. requests of the
+// same priority are started in the order they were submitted.
+public enum Priority {
+    // started by the user and waited on, e.g. writes and action invokes
+    INTERACTIVE,
+    // needed for what is on screen, e.g. reads of visible variables
+    VISIBLE,
+    // nobody is waiting on it, e.g. schema revalidation and blob transfers
+    BACKGROUND
+}
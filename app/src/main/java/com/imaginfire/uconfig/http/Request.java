@@ -17,16 +17,14 @@
 
 package com.imaginfire.uconfig.http;
 
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
-import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
@@ -34,75 +32,405 @@ import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class Request extends AsyncTask<RequestArguments, Void, JSONObject> {
+// a GET request to a device. the response is decoded on the request thread
+// and the result is delivered to the callback on the chosen executor, unless
+// the request is cancelled first. cancelling a request that is in progress
+// closes the connection to the device.
+// requests that only read are retried a bounded number of times, requests to
+// a device whose CircuitBreaker is open fail without contacting it.
+// a read that is identical to one already in progress shares its exchange
+// with the device, each request receives the result.
+public class Request<T> extends FutureTask<T> {
     private final static String TAG = "Request";
-    private OnDownloadCallback cb;
+    // reads that are in progress, by their url
+    private static final ConcurrentHashMap<String, Flight<?>> in_flight = new ConcurrentHashMap<>();
+    private static final AtomicLong shared = new AtomicLong();
+    // waits out the delay before a retry, then the flight is queued again
+    private static final Handler retries = new Handler(Looper.getMainLooper());
+    private final OnDecodeCallback<T> cb;
+    private final Executor callback_executor;
+    private volatile Flight<T> flight = null;
 
-    private static final Object lock = new Object();
+    private Request(OnDecodeCallback<T> cb, Executor callback_executor) {
+        // never run, completed by its flight
+        super(() -> null);
+        this.cb = cb;
+        this.callback_executor = callback_executor;
+    }
+
+    // the callback is run on the main thread
+    @NonNull
+    public static Request<JSONObject> submit(@NonNull RequestArguments a) {
+        return submit(a, RequestExecutor.MAIN_THREAD);
+    }
 
+    // requests to the same device are queued, different devices are contacted in parallel
+    @NonNull
+    public static Request<JSONObject> submit(@NonNull RequestArguments a, @NonNull Executor callback_executor) {
+        return submit(a.url, a.params, a.priority, JsonObjectDecoder.INSTANCE, a.callback::onDownload, callback_executor);
+    }
+
+    // the response is handed to the decoder as it is read, so large responses
+    // can be turned into their final form without blocking the callback executor
+    @NonNull
+    public static <T> Request<T> submit(@NonNull String url, @NonNull List<Map.Entry<String, String>> params,
+                                        @NonNull ResponseDecoder<T> decoder, @NonNull OnDecodeCallback<T> cb,
+                                        @NonNull Executor callback_executor) {
+        return submit(url, params, Priority.VISIBLE, decoder, cb, callback_executor);
+    }
+
+    // queued requests to a device are started in order of priority
+    @NonNull
+    public static <T> Request<T> submit(@NonNull String url, @NonNull List<Map.Entry<String, String>> params,
+                                        @NonNull Priority priority,
+                                        @NonNull ResponseDecoder<T> decoder, @NonNull OnDecodeCallback<T> cb,
+                                        @NonNull Executor callback_executor) {
+        Request<T> r = new Request<>(cb, callback_executor);
+        String key = isIdempotent(url) ? url + params : null;
+        HostLimiter limiter = HostLimiter.forUrl(url);
+        Flight<T> f = new Flight<>(key, new Exchange<>(url, params, decoder), decoder, limiter, priority);
+        // joined before it is published, so a request sharing it can not cancel it
+        // by leaving before this one has joined
+        r.flight = f;
+        f.join(r);
+        if (key != null) {
+            // registered atomically, so two identical reads can not both start an exchange
+            while (true) {
+                Flight<?> existing = in_flight.putIfAbsent(key, f);
+                // the decoder decides the result, so only a flight with the same decoder can be shared
+                if (existing == null || existing.decoder != decoder) {
+                    break;
+                }
+                @SuppressWarnings("unchecked")
+                Flight<T> e = (Flight<T>) existing;
+                if (e.join(r)) {
+                    // f was never published or started, it is dropped
+                    r.flight = e;
+                    Log.d(TAG, "Sharing request in progress: " + url + params);
+                    shared.incrementAndGet();
+                    return r;
+                }
+                // finished but not removed yet, replace it
+                in_flight.remove(key, e);
+            }
+        }
+        limiter.execute(f, priority);
+        return r;
+    }
+
+    // number of requests that were given the result of an identical request
+    static long getShared() {
+        return shared.get();
+    }
+
+    // the exchange with the device is only abandoned once no request needs it
     @Override
-    protected void onPostExecute(JSONObject jsonObject) {
-        super.onPostExecute(jsonObject);
-        cb.onDownload(jsonObject);
-        cb = null;
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(false);
+        if (cancelled) {
+            flight.leave(this);
+        }
+        return cancelled;
+    }
+
+    private void complete(T result) {
+        set(result);
     }
 
     @Override
-    protected JSONObject doInBackground(RequestArguments... requestArguments) {
-        RequestArguments a = requestArguments[0];
-        cb = a.callback;
+    protected void done() {
+        if (isCancelled()) {
+            return;
+        }
+        T result;
         try {
-            StringBuilder sb_url = new StringBuilder();
-            sb_url.append(a.url);
-            if (a.params != null && !a.params.isEmpty()) {
-                sb_url.append('?');
-                for (Map.Entry<String, String> e : a.params.entrySet()) {
-                    if (sb_url.charAt(sb_url.length()-1) != '?') {
-                        sb_url.append('&');
+            result = get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Request failed", e);
+            result = null;
+        }
+        final T r = result;
+        callback_executor.execute(() -> cb.onDecode(r));
+    }
+
+    // get and schema only read from the device so are safe to repeat, a set or
+    // invoke may have taken effect even if the response was lost
+    private static boolean isIdempotent(String url) {
+        return url.endsWith("/get") || url.endsWith("/schema");
+    }
+
+    // an exchange with a device, and the requests waiting on its result. each
+    // run is one attempt, a flight that is to be retried is queued again after
+    // the delay, so others can use the device while it waits.
+    private static class Flight<T> extends FutureTask<T> {
+        private final String key;
+        private final Exchange<T> exchange;
+        private final ResponseDecoder<T> decoder;
+        private final HostLimiter limiter;
+        private final Priority priority;
+        private final ArrayList<Request<T>> requests = new ArrayList<>(1);
+        private boolean finished = false;
+
+        Flight(String key, Exchange<T> exchange, ResponseDecoder<T> decoder, HostLimiter limiter,
+               Priority priority) {
+            super(exchange);
+            this.key = key;
+            this.exchange = exchange;
+            this.decoder = decoder;
+            this.limiter = limiter;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            // false if cancelled, or the attempt threw and the flight failed
+            if (!runAndReset()) {
+                return;
+            }
+            long delay = exchange.getRetryDelay();
+            if (delay < 0) {
+                set(exchange.result);
+                return;
+            }
+            retries.postDelayed(() -> {
+                if (!isDone()) {
+                    limiter.execute(this, priority);
+                }
+            }, delay);
+        }
+
+        // false if the result has already been delivered
+        synchronized boolean join(Request<T> r) {
+            if (finished) {
+                return false;
+            }
+            requests.add(r);
+            return true;
+        }
+
+        synchronized void leave(Request<T> r) {
+            requests.remove(r);
+            if (requests.isEmpty() && !finished) {
+                cancel(true);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                // if not started yet, free its place in the queue of the device
+                limiter.remove(this);
+                exchange.abort();
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            ArrayList<Request<T>> waiting;
+            synchronized (this) {
+                finished = true;
+                waiting = new ArrayList<>(requests);
+                requests.clear();
+            }
+            if (key != null) {
+                in_flight.remove(key, this);
+            }
+            exchange.onDone();
+            T result = null;
+            if (!isCancelled()) {
+                try {
+                    result = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(TAG, "Request failed", e);
+                }
+            }
+            for (Request<T> r : waiting) {
+                r.complete(result);
+            }
+        }
+    }
+
+    // a single attempt at the exchange each time it is called. a failed read
+    // sets a retry delay instead of sleeping, so the flight can give up its
+    // place in the queue of the device while waiting. the CircuitBreaker is
+    // told the final outcome of the request once, not that of each attempt.
+    private static class Exchange<T> implements Callable<T> {
+        private static final int MAX_RETRIES = 2;
+        private static final long RETRY_DELAY = 100;
+
+        private final String base_url;
+        private final List<Map.Entry<String, String>> params;
+        private final ResponseDecoder<T> decoder;
+        private final boolean idempotent;
+        private final CircuitBreaker breaker;
+        private Connection connection = null;
+        private volatile boolean aborted = false;
+        // only used by the thread running the attempt
+        private URL url = null;
+        private int attempt = 0;
+        private long retry_delay = -1;
+        private T result = null;
+        // guarded by this
+        private boolean settled = false;
+
+        Exchange(String base_url, List<Map.Entry<String, String>> params, ResponseDecoder<T> decoder) {
+            this.base_url = base_url;
+            this.params = params;
+            this.decoder = decoder;
+            idempotent = isIdempotent(base_url);
+            breaker = CircuitBreaker.forUrl(base_url);
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            if (connection != null) {
+                connection.abort();
+            }
+        }
+
+        // milliseconds to wait before the next attempt, -1 if the last attempt was final
+        long getRetryDelay() {
+            return retry_delay;
+        }
+
+        // called once the request is complete, a request cancelled between
+        // attempts is abandoned without an attempt to report it
+        void onDone() {
+            if (settle()) {
+                breaker.onAbandoned();
+            }
+        }
+
+        // true for the first outcome of the request only
+        private synchronized boolean settle() {
+            if (settled) {
+                return false;
+            }
+            settled = true;
+            return true;
+        }
+
+        @Override
+        public T call() {
+            retry_delay = -1;
+            result = null;
+            if (url == null) {
+                url = buildUrl();
+                if (url == null) {
+                    settle();
+                    return null;
+                }
+            }
+            // retries belong to the request the breaker allowed, e.g. its probe
+            if (attempt == 0 && !breaker.allowRequest()) {
+                Log.d(TAG, breaker + " is not responding, failing request");
+                settle();
+                return null;
+            }
+            boolean succeeded = false;
+            // only io errors are retried, anything else thrown is not caused by the device
+            boolean io_failed = false;
+            try {
+                result = exchange(url);
+                succeeded = true;
+                return result;
+            } catch (SocketTimeoutException e) {
+                io_failed = true;
+                Log.e(TAG, "Timeout while communicating with server");
+            } catch (IOException | UncheckedIOException e) {
+                io_failed = true;
+                if (aborted) {
+                    Log.d(TAG, "Request cancelled");
+                } else {
+                    Log.e(TAG, "Failed to communicate with server", e);
+                }
+            } finally {
+                // every exit, including anything thrown by the decoder, must end in
+                // an outcome or a retry, or a half open breaker stays probing
+                if (aborted) {
+                    if (settle()) {
+                        breaker.onAbandoned();
+                    }
+                } else if (succeeded) {
+                    if (settle()) {
+                        breaker.onSuccess();
+                    }
+                } else if (io_failed && idempotent && attempt < MAX_RETRIES) {
+                    // spread retries out so devices recovering are not hit by every client at once
+                    long backoff = RETRY_DELAY << attempt;
+                    retry_delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                    attempt++;
+                    Log.d(TAG, "Retrying in " + retry_delay + "ms: " + url);
+                } else if (settle()) {
+                    breaker.onFailure();
+                }
+            }
+            return null;
+        }
+
+        // null if the url can not be built
+        private URL buildUrl() {
+            try {
+                StringBuilder sb_url = new StringBuilder();
+                sb_url.append(base_url);
+                if (!params.isEmpty()) {
+                    sb_url.append('?');
+                    for (Map.Entry<String, String> e : params) {
+                        if (sb_url.charAt(sb_url.length()-1) != '?') {
+                            sb_url.append('&');
+                        }
+                        sb_url.append(e.getKey());
+                        sb_url.append('=');
+                        sb_url.append(URLEncoder.encode(e.getValue(), "UTF-8"));
                     }
-                    sb_url.append(e.getKey());
-                    sb_url.append('=');
-                    sb_url.append(URLEncoder.encode(e.getValue(), "UTF-8"));
                 }
+                Log.d(TAG,"Requesting: " + sb_url.toString());
+                return new URL(sb_url.toString());
+            } catch (MalformedURLException e) {
+                Log.e(TAG, "Schema url invalid", e);
+            } catch (UnsupportedEncodingException e) {
+                Log.e(TAG, "UTF is not supported.", e);
+            }
+            return null;
+        }
+
+        // null if the response was not a 200 or could not be decoded
+        private T exchange(URL url) throws IOException {
+            Connection c = Connection.forUrl(url);
+            synchronized (this) {
+                if (aborted) {
+                    return null;
+                }
+                connection = c;
             }
-            Log.d(TAG,"Requesting: " + sb_url.toString());
-            synchronized (lock) {
-                URL url = new URL(sb_url.toString());
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-                connection.setRequestMethod("GET");
-                // set tight timeouts as this is synchronised
-                connection.setConnectTimeout(3000);
-                connection.setReadTimeout(2000);
-                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                    //Get Response
-                    String response = new BufferedReader(new InputStreamReader(connection.getInputStream()))
-                            .lines().collect(Collectors.joining("\n"));
-                    JSONTokener tok = new JSONTokener(response);
-                    Object data = tok.nextValue();
-                    if (data instanceof JSONObject) {
-                        return (JSONObject) data;
-                    } else {
-                        Log.e(TAG, "Not a JSON object at root");
+            try {
+                // timeouts follow the measured round trip time of the device
+                return c.exchange(url.getFile(), idempotent, () -> aborted, (code, type, body) -> {
+                    if (code != HttpURLConnection.HTTP_OK) {
+                        Log.e(TAG, "Failed to get valid 200 response from server: " + code);
+                        return null;
                     }
-                } else {
-                    Log.e(TAG, "Failed to get valid 200 response from server: " + connection.getResponseCode());
+                    // decode straight from the socket
+                    return decoder.decode(body);
+                });
+            } finally {
+                synchronized (this) {
+                    connection = null;
                 }
             }
-        } catch (MalformedURLException e) {
-            Log.e(TAG, "Schema url invalid", e);
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "UTF is not supported.", e);
-        } catch (SocketTimeoutException e) {
-            Log.e(TAG, "Timeout while communicating with server");
-        } catch (IOException | UncheckedIOException e) {
-            Log.e(TAG, "Failed to communicate with server", e);
-        } catch (JSONException e) {
-            Log.e(TAG, "Could not parse returned data as json.", e);
-        }
-        return null;
+        }
     }
 }
@@ -19,18 +19,38 @@ package com.imaginfire.uconfig.http;
 
 import android.support.annotation.NonNull;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 public class RequestArguments {
-    public final Map<String, String> params;
+    // query parameters in order, a name can be repeated
+    @NonNull
+    public final List<Map.Entry<String, String>> params;
     @NonNull
     public final String url;
     @NonNull
     public final OnDownloadCallback callback;
+    @NonNull
+    public final Priority priority;
 
     public RequestArguments(Map<String, String> p, @NonNull String u, @NonNull OnDownloadCallback cb) {
+        this(p, u, Priority.VISIBLE, cb);
+    }
+
+    public RequestArguments(Map<String, String> p, @NonNull String u, @NonNull Priority pr, @NonNull OnDownloadCallback cb) {
+        this(p == null ? Collections.emptyList() : new ArrayList<>(p.entrySet()), u, pr, cb);
+    }
+
+    public RequestArguments(@NonNull List<Map.Entry<String, String>> p, @NonNull String u, @NonNull OnDownloadCallback cb) {
+        this(p, u, Priority.VISIBLE, cb);
+    }
+
+    public RequestArguments(@NonNull List<Map.Entry<String, String>> p, @NonNull String u, @NonNull Priority pr, @NonNull OnDownloadCallback cb) {
         params = p;
         url = u;
+        priority = pr;
         callback = cb;
     }
 }
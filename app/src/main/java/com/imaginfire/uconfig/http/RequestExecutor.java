@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.http;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// threads used to run requests and to deliver their results
+public final class RequestExecutor {
+    private static final int POOL_SIZE = 4;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+    // requests in flight to a device when pipelining, below POOL_SIZE so a
+    // single device does not take every thread
+    private static final int PIPELINE_DEPTH = 3;
+    private static final AtomicInteger thread_count = new AtomicInteger();
+    private static final AtomicInteger disk_thread_count = new AtomicInteger();
+
+    // the HostLimiter of each device decides what is handed to the pool, so
+    // the queue is bounded by the number of devices times their limit
+    static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+            POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> new Thread(r, "Request #" + thread_count.incrementAndGet()));
+
+    // local file access, e.g. loading cached schemas, kept off the request
+    // threads so a slow device does not hold up the disk or the other way round
+    private static final ThreadPoolExecutor DISK_POOL = new ThreadPoolExecutor(
+            1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> new Thread(r, "Disk #" + disk_thread_count.incrementAndGet()));
+
+    static {
+        POOL.allowCoreThreadTimeOut(true);
+        DISK_POOL.allowCoreThreadTimeOut(true);
+    }
+
+    public static final Executor DISK = DISK_POOL;
+
+    // short tasks that must not block the main thread and are not requests,
+    // e.g. reading the first chunk of an upload
+    public static final Executor REQUEST_POOL = POOL;
+
+    public static final Executor MAIN_THREAD = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable r) {
+            handler.post(r);
+        }
+    };
+
+    // runs callbacks on the request thread, they must not block
+    public static final Executor REQUEST_THREAD = Runnable::run;
+
+    // sends up to PIPELINE_DEPTH requests to a device over its connection without
+    // waiting for the responses. off by default, not every embedded server reads
+    // a request while it is still answering the one before.
+    public static void setPipelining(boolean enabled) {
+        int depth = enabled ? PIPELINE_DEPTH : 1;
+        Connection.setDefaultPipelineDepth(depth);
+        HostLimiter.setDefaultLimit(depth);
+    }
+
+    private RequestExecutor() {
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// turns the body of a response into a result while it is being read, this is
+// run on the request thread so it may take its time without blocking the ui.
+public interface ResponseDecoder<T> {
+    // returning null reports the request as failed
+    T decode(InputStream body) throws IOException;
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.http;
+
+// estimates the round trip time of a device the way tcp does (rfc 6298), and
+// derives the timeouts of requests to it. a healthy device on the local network
+// answers in tens of milliseconds so a stall is detected quickly, while a device
+// on a poor link is given the time it needs. only reads are timed, a write or
+// an invoke can make the device do real work before it answers, so those are
+// given a longer timeout of their own.
+public class RttEstimator {
+    // used until the first response has been timed
+    private static final int INITIAL_CONNECT_TIMEOUT = 3000;
+    private static final int INITIAL_READ_TIMEOUT = 2000;
+    // a connect also pays for waking up the wifi link, so needs a little longer
+    private static final int MIN_CONNECT_TIMEOUT = 500;
+    private static final int MIN_READ_TIMEOUT = 250;
+    // a command is not retried, so a timeout that is too short loses it
+    private static final int MIN_COMMAND_TIMEOUT = 2000;
+    private static final int MAX_TIMEOUT = 10000;
+    // each timeout in a row doubles the timeouts, up to this many times
+    private static final int MAX_BACKOFF = 4;
+
+    // all in milliseconds
+    private long srtt = 0;
+    private long rttvar = 0;
+    private long samples = 0;
+    private long timeouts = 0;
+    private int backoff = 0;
+
+    // time from the request being at the head of the connection to the response head
+    synchronized void sample(long rtt) {
+        if (samples == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        samples++;
+        backoff = 0;
+    }
+
+    synchronized void timedOut() {
+        timeouts++;
+        if (backoff < MAX_BACKOFF) {
+            backoff++;
+        }
+    }
+
+    public synchronized int getConnectTimeout() {
+        return timeout(INITIAL_CONNECT_TIMEOUT, MIN_CONNECT_TIMEOUT);
+    }
+
+    public synchronized int getReadTimeout() {
+        return timeout(INITIAL_READ_TIMEOUT, MIN_READ_TIMEOUT);
+    }
+
+    // time allowed for the response to a request that changes the device
+    public synchronized int getCommandTimeout() {
+        return Math.min(Math.max(getReadTimeout(), MIN_COMMAND_TIMEOUT), MAX_TIMEOUT);
+    }
+
+    // smoothed round trip time in milliseconds, zero before the first sample
+    public synchronized long getSmoothedRtt() {
+        return srtt;
+    }
+
+    public synchronized long getRttVariance() {
+        return rttvar;
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    private int timeout(int initial, int min) {
+        long t = samples == 0 ? initial : Math.max(srtt + 4 * rttvar, min);
+        return (int) Math.min(t << backoff, MAX_TIMEOUT);
+    }
+}
@@ -22,36 +22,33 @@ import android.arch.lifecycle.MutableLiveData;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import com.imaginfire.uconfig.http.Priority;
 import com.imaginfire.uconfig.http.Request;
 import com.imaginfire.uconfig.http.RequestArguments;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.util.HashMap;
 import java.util.Map;
 
 public class Action {
     private static final String TAG = "Action";
-    private final String name;
-    private final HashMap<String, Value.Type> params = new HashMap<>();
+    // shared with other devices serving the same schema
+    private final SchemaTemplate.ActionSpec spec;
     private final String api;
-    private String display = "";
     private final MutableLiveData<Boolean> busy = new MutableLiveData<>();
+    private Request<JSONObject> request = null;
 
-    Action(@NonNull String api, @NonNull String name) {
-        this.name = name;
+    Action(@NonNull String api, @NonNull SchemaTemplate.ActionSpec spec) {
+        this.spec = spec;
         this.api = api;
-        busy.setValue(false);
-        updateDisplayString();
-    }
-
-    void addParameter(String name, Value.Type type) {
-        params.put(name, type);
-        updateDisplayString();
+        // schemas are decoded off the main thread
+        busy.postValue(false);
     }
 
     public Map<String, Value.Type> getParameterSpecification() {
-        return params;
+        return spec.params;
     }
 
     public LiveData<Boolean> getBusy() {
@@ -61,24 +58,24 @@ public class Action {
     public boolean invoke(Map<String, Value> parameters, OnAction ok, OnAction fail) {
         Log.d(TAG, "Invoking action");
 
-        if (parameters.size() != params.size()) {
+        if (parameters.size() != spec.params.size()) {
             Log.w(TAG, "Inconsistent number of parameters while invoking action, ignoring.");
             return false;
         }
 
         HashMap<String, String> http_params = new HashMap<>();
-        http_params.put("method", name);
+        http_params.put("method", spec.name);
         for (Map.Entry<String, Value> e : parameters.entrySet()) {
-            if (params.containsKey(e.getKey())) {
+            if (spec.params.containsKey(e.getKey())) {
                 if (e.getValue() == null) {
                     Log.w(TAG, "Null value provided for parameter " + e.getKey() + ", ignoring.");
                     return false;
                 }
-                if (params.get(e.getKey()) != e.getValue().type) {
+                if (spec.params.get(e.getKey()) != e.getValue().type) {
                     Log.w(TAG, "Inconsistent types of parameter " + e.getKey() + ", ignoring.");
                     return false;
                 }
-                http_params.put(e.getKey(), e.getValue().toString());
+                http_params.put(e.getKey(), ValueCodec.forType(e.getValue().type).encode(e.getValue()));
             } else {
                 Log.w(TAG, "Inconsistent names of parameters while invoking, ignoring.");
                 return false;
@@ -90,9 +87,10 @@ public class Action {
         }
         busy.postValue(true);
 
-        new Request().execute(new RequestArguments(
+        request = Request.submit(new RequestArguments(
                 http_params,
                 api + "invoke",
+                Priority.INTERACTIVE,
                 obj -> {
                     if (obj == null) {
                         Log.d(TAG, "failed to write value");
@@ -129,29 +127,20 @@ public class Action {
         return true;
     }
 
-    public String getName() {
-        return name;
-    }
-
-    private void updateDisplayString() {
-        StringBuilder sb = new StringBuilder();
-
-        sb.append(name);
-        sb.append('(');
-
-        for (Map.Entry<String, Value.Type> e : params.entrySet()) {
-            if (sb.charAt(sb.length() - 1) != '(') {
-                sb.append(',');
-            }
-            sb.append(e.getKey());
+    // abandon the invocation that is in progress, no callbacks will be made for it
+    void cancel() {
+        Request<JSONObject> r = request;
+        if (r != null && r.cancel(true)) {
+            busy.postValue(false);
         }
+    }
 
-        sb.append(')');
-        display = sb.toString();
+    public String getName() {
+        return spec.name;
     }
 
     @Override
     public String toString() {
-        return display;
+        return spec.display;
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.model;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+// remembers the last plain beacon received from each source so that byte
+// identical repeats can be recognised without parsing them. not thread safe,
+// it is only used from the udp receiver thread.
+class BeaconCache {
+    private static final int MAX_SOURCES = 1024;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final HashMap<InetAddress, Entry> entries = new HashMap<>();
+
+    // the packets are read between position and limit, neither is modified
+    static long fingerprint(ByteBuffer packet) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = packet.position(); i < packet.limit(); i++) {
+            hash ^= packet.get(i) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    boolean isRepeat(InetAddress source, long fingerprint, ByteBuffer packet) {
+        Entry e = entries.get(source);
+        int length = packet.remaining();
+        if (e == null || e.fingerprint != fingerprint || e.length != length) {
+            return false;
+        }
+        int offset = packet.position();
+        for (int i = 0; i < length; i++) {
+            if (e.payload[i] != packet.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void remember(InetAddress source, long fingerprint, ByteBuffer packet) {
+        int length = packet.remaining();
+        Entry e = entries.get(source);
+        if (e == null) {
+            if (entries.size() >= MAX_SOURCES) {
+                entries.clear();
+            }
+            e = new Entry();
+            entries.put(source, e);
+        }
+        if (e.payload == null || e.payload.length < length) {
+            e.payload = new byte[length];
+        }
+        int offset = packet.position();
+        for (int i = 0; i < length; i++) {
+            e.payload[i] = packet.get(offset + i);
+        }
+        e.length = length;
+        e.fingerprint = fingerprint;
+    }
+
+    void forget(InetAddress source) {
+        entries.remove(source);
+    }
+
+    private static class Entry {
+        long fingerprint;
+        int length;
+        byte[] payload;
+    }
+}
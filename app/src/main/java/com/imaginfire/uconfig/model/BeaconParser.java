@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.model;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// pull parser for the fixed beacon grammar:
+//   {"beacon": {"api": .., "name": .., "id": ..}, "data": {"name": .., "type": .., "value": ..}}
+// it reads the json directly from the datagram buffer without moving its position
+// and only allocates for strings that have not been seen before. unknown members
+// are skipped. not thread safe.
+class BeaconParser {
+    private static final byte[] K_BEACON = bytes("beacon");
+    private static final byte[] K_DATA = bytes("data");
+    private static final byte[] K_API = bytes("api");
+    private static final byte[] K_NAME = bytes("name");
+    private static final byte[] K_ID = bytes("id");
+    private static final byte[] K_TYPE = bytes("type");
+    private static final byte[] K_VALUE = bytes("value");
+    private static final ValueCodec[] CODECS = ValueCodec.all().toArray(new ValueCodec[0]);
+
+    private static final int OBJECT_ROOT = 0;
+    private static final int OBJECT_BEACON = 1;
+    private static final int OBJECT_DATA = 2;
+    private static final int OBJECT_OTHER = 3;
+    private static final int MAX_DEPTH = 16;
+    private static final long MAX_NUMBER = Long.MAX_VALUE / 10 - 9;
+
+    private static final MalformedException MALFORMED = new MalformedException();
+
+    private final StringPool pool = new StringPool();
+    // unescaped strings are never longer than their encoding in the packet
+    private final byte[] scratch;
+    private int scratch_length;
+    private ByteBuffer in;
+    private int pos;
+    private int limit;
+
+    BeaconParser(int max_packet_size) {
+        scratch = new byte[max_packet_size];
+    }
+
+    // returns false if the packet is not a json object
+    boolean parse(@NonNull ByteBuffer buffer, @NonNull BeaconRecord record) {
+        record.reset();
+        in = buffer;
+        pos = buffer.position();
+        limit = buffer.limit();
+        try {
+            skipWhitespace();
+            object(OBJECT_ROOT, record, 0);
+            return true;
+        } catch (MalformedException e) {
+            return false;
+        } finally {
+            in = null;
+        }
+    }
+
+    private void object(int kind, BeaconRecord record, int depth) throws MalformedException {
+        if (depth > MAX_DEPTH) {
+            throw MALFORMED;
+        }
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            string();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            member(kind, record, depth);
+            skipWhitespace();
+            byte c = next();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    // the key of the member has been read into scratch, the value is next
+    private void member(int kind, BeaconRecord record, int depth) throws MalformedException {
+        byte c = peek();
+        switch (kind) {
+            case OBJECT_ROOT:
+                if (c == '{' && isKey(K_BEACON)) {
+                    record.beacon = true;
+                    object(OBJECT_BEACON, record, depth + 1);
+                    return;
+                }
+                if (c == '{' && isKey(K_DATA)) {
+                    record.data = true;
+                    object(OBJECT_DATA, record, depth + 1);
+                    return;
+                }
+                break;
+            case OBJECT_BEACON:
+                if (c == '"') {
+                    if (isKey(K_API)) {
+                        record.api = internedString();
+                        return;
+                    }
+                    if (isKey(K_NAME)) {
+                        record.name = internedString();
+                        return;
+                    }
+                    if (isKey(K_ID)) {
+                        record.id = internedString();
+                        return;
+                    }
+                }
+                break;
+            case OBJECT_DATA:
+                if (c == '"' && isKey(K_NAME)) {
+                    record.data_name = internedString();
+                    return;
+                }
+                if (c == '"' && isKey(K_TYPE)) {
+                    string();
+                    record.data_codec = null;
+                    for (ValueCodec codec : CODECS) {
+                        if (isKey(codec.wire_bytes)) {
+                            record.data_codec = codec;
+                            break;
+                        }
+                    }
+                    return;
+                }
+                if (isKey(K_VALUE)) {
+                    if (c == '"') {
+                        // values are unbounded, interning them would evict the names and ids
+                        string();
+                        record.string_value = new String(scratch, 0, scratch_length, StandardCharsets.UTF_8);
+                        record.value_kind = BeaconRecord.Kind.String;
+                        return;
+                    }
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        int start = pos;
+                        if (number(record)) {
+                            record.value_kind = BeaconRecord.Kind.Number;
+                        } else {
+                            // rare, so the text is kept for the codec to make sense of
+                            record.string_value = ascii(start, pos);
+                            record.value_kind = BeaconRecord.Kind.Decimal;
+                        }
+                        return;
+                    }
+                    record.value_kind = BeaconRecord.Kind.Invalid;
+                }
+                break;
+        }
+        skipValue(depth + 1);
+    }
+
+    private void skipValue(int depth) throws MalformedException {
+        byte c = peek();
+        switch (c) {
+            case '"':
+                string();
+                return;
+            case '{':
+                object(OBJECT_OTHER, null, depth);
+                return;
+            case '[':
+                array(depth);
+                return;
+            case 't':
+                literal("true");
+                return;
+            case 'f':
+                literal("false");
+                return;
+            case 'n':
+                literal("null");
+                return;
+        }
+        if (c == '-' || (c >= '0' && c <= '9')) {
+            number(null);
+            return;
+        }
+        throw MALFORMED;
+    }
+
+    private void array(int depth) throws MalformedException {
+        if (depth > MAX_DEPTH) {
+            throw MALFORMED;
+        }
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            skipValue(depth + 1);
+            skipWhitespace();
+            byte c = next();
+            if (c == ']') {
+                return;
+            }
+            if (c != ',') {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    // returns true if the number is integral and fits into a long
+    private boolean number(BeaconRecord record) throws MalformedException {
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            pos++;
+        }
+        byte c = peek();
+        if (c < '0' || c > '9') {
+            throw MALFORMED;
+        }
+        long value = 0;
+        boolean integral = true;
+        while (pos < limit) {
+            c = in.get(pos);
+            if (c >= '0' && c <= '9') {
+                if (value > MAX_NUMBER) {
+                    integral = false;
+                } else {
+                    value = value * 10 + (c - '0');
+                }
+            } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                integral = false;
+            } else {
+                break;
+            }
+            pos++;
+        }
+        if (record != null && integral) {
+            record.number_value = negative ? -value : value;
+        }
+        return integral;
+    }
+
+    private String ascii(int start, int end) {
+        byte[] b = new byte[end - start];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = in.get(start + i);
+        }
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+
+    private void literal(String s) throws MalformedException {
+        for (int i = 0; i < s.length(); i++) {
+            if (next() != s.charAt(i)) {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    private String internedString() throws MalformedException {
+        string();
+        return pool.intern(scratch, 0, scratch_length);
+    }
+
+    // reads a json string and leaves its utf-8 encoding in scratch
+    private void string() throws MalformedException {
+        expect('"');
+        scratch_length = 0;
+        while (true) {
+            byte c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                escape();
+            } else if (c >= 0 && c < 0x20) {
+                throw MALFORMED;
+            } else {
+                append(c);
+            }
+        }
+    }
+
+    private void escape() throws MalformedException {
+        byte c = next();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                append(c);
+                return;
+            case 'b':
+                append((byte) '\b');
+                return;
+            case 'f':
+                append((byte) '\f');
+                return;
+            case 'n':
+                append((byte) '\n');
+                return;
+            case 'r':
+                append((byte) '\r');
+                return;
+            case 't':
+                append((byte) '\t');
+                return;
+            case 'u':
+                int cp = hex4();
+                if (Character.isHighSurrogate((char) cp)
+                        && pos + 1 < limit && in.get(pos) == '\\' && in.get(pos + 1) == 'u') {
+                    pos += 2;
+                    int low = hex4();
+                    if (Character.isLowSurrogate((char) low)) {
+                        cp = Character.toCodePoint((char) cp, (char) low);
+                    } else {
+                        cp = 0xFFFD;
+                    }
+                } else if (Character.isSurrogate((char) cp)) {
+                    cp = 0xFFFD;
+                }
+                appendCodePoint(cp);
+                return;
+        }
+        throw MALFORMED;
+    }
+
+    private int hex4() throws MalformedException {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            int d = Character.digit(next(), 16);
+            if (d < 0) {
+                throw MALFORMED;
+            }
+            v = (v << 4) | d;
+        }
+        return v;
+    }
+
+    private void appendCodePoint(int cp) throws MalformedException {
+        if (cp < 0x80) {
+            append((byte) cp);
+        } else if (cp < 0x800) {
+            append((byte) (0xC0 | (cp >> 6)));
+            append((byte) (0x80 | (cp & 0x3F)));
+        } else if (cp < 0x10000) {
+            append((byte) (0xE0 | (cp >> 12)));
+            append((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            append((byte) (0x80 | (cp & 0x3F)));
+        } else {
+            append((byte) (0xF0 | (cp >> 18)));
+            append((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            append((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            append((byte) (0x80 | (cp & 0x3F)));
+        }
+    }
+
+    private void append(byte b) throws MalformedException {
+        if (scratch_length >= scratch.length) {
+            throw MALFORMED;
+        }
+        scratch[scratch_length++] = b;
+    }
+
+    private boolean isKey(byte[] key) {
+        if (key.length != scratch_length) {
+            return false;
+        }
+        for (int i = 0; i < scratch_length; i++) {
+            if (key[i] != scratch[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (pos < limit) {
+            byte c = in.get(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private byte peek() throws MalformedException {
+        if (pos >= limit) {
+            throw MALFORMED;
+        }
+        return in.get(pos);
+    }
+
+    private byte next() throws MalformedException {
+        if (pos >= limit) {
+            throw MALFORMED;
+        }
+        return in.get(pos++);
+    }
+
+    private void expect(char c) throws MalformedException {
+        if (next() != c) {
+            throw MALFORMED;
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // thrown for every malformed packet, so it is shared and has no stack trace
+    private static class MalformedException extends Exception {
+        MalformedException() {
+            super("malformed beacon", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.model;
+
+// mutable result of parsing a single udp packet, reused for every packet
+class BeaconRecord {
+    // a Decimal is a number that is not an integer or does not fit a long,
+    // its text is held in string_value
+    enum Kind {
+        None, Number, Decimal, String, Invalid
+    }
+
+    boolean beacon;
+    String api;
+    String name;
+    String id;
+
+    boolean data;
+    String data_name;
+    ValueCodec data_codec;
+    Kind value_kind;
+    long number_value;
+    String string_value;
+
+    void reset() {
+        beacon = false;
+        api = null;
+        name = null;
+        id = null;
+        data = false;
+        data_name = null;
+        data_codec = null;
+        value_kind = Kind.None;
+        number_value = 0;
+        string_value = null;
+    }
+
+    boolean isValidBeacon() {
+        return beacon && api != null && name != null && id != null;
+    }
+
+    boolean isValidData() {
+        return data && data_name != null && data_codec != null
+                && value_kind != Kind.None && value_kind != Kind.Invalid;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.imaginfire.uconfig.http.Priority;
+import com.imaginfire.uconfig.http.Request;
+import com.imaginfire.uconfig.http.RequestArguments;
+import com.imaginfire.uconfig.http.RequestExecutor;
+import com.imaginfire.uconfig.http.ResponseDecoder;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// moves the content of a BLOB variable to or from a channel in ranged chunks,
+// so the whole value is never held in memory. each chunk is a request of its
+// own, queued with the other requests to the device. a chunk that fails is
+// retried, after that the transfer stops and can be resumed from the last
+// chunk that completed.
+public class BlobTransfer {
+    private static final String TAG = "BlobTransfer";
+    // bytes requested per get
+    private static final int READ_CHUNK_SIZE = 4096;
+    // bytes sent per set, hex encoded in the url so kept small for embedded servers
+    private static final int WRITE_CHUNK_SIZE = 256;
+    private static final int MAX_RETRIES = 2;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // called on the main thread
+    public interface Listener {
+        // total is -1 if the size is not known
+        void onProgress(long transferred, long total);
+
+        void onComplete(long total);
+
+        // the transfer stopped, it can be resumed
+        void onError(long transferred);
+    }
+
+    private final String api;
+    private final String name;
+    private final boolean upload;
+    private final WritableByteChannel sink;
+    private final ReadableByteChannel source;
+    private final long total;
+    private final Listener listener;
+    // bytes confirmed so far
+    private long offset;
+    private int retries = 0;
+    private boolean running = false;
+    private boolean cancelled = false;
+    // the chunk being read, only passed on to the sink once it is complete so
+    // a chunk that fails part way is not written twice
+    private final ByteBuffer chunk;
+    // the chunk being written, kept until the device has accepted it
+    private final ByteBuffer pending;
+    private boolean pending_last = false;
+    private boolean pending_valid = false;
+    private Request<?> request = null;
+
+    private BlobTransfer(String api, String name, long offset, long total, WritableByteChannel sink,
+                         ReadableByteChannel source, Listener listener) {
+        this.api = api;
+        this.name = name;
+        this.offset = offset;
+        this.total = total;
+        this.sink = sink;
+        this.source = source;
+        this.upload = source != null;
+        this.listener = listener;
+        chunk = upload ? null : ByteBuffer.allocate(READ_CHUNK_SIZE);
+        pending = upload ? ByteBuffer.allocate(WRITE_CHUNK_SIZE) : null;
+    }
+
+    // reads the variable from offset onwards into out, to resume a download
+    // pass the number of bytes already received
+    @NonNull
+    static BlobTransfer download(String api, String name, long offset, long total,
+                                 @NonNull WritableByteChannel out, @Nullable Listener l) {
+        return new BlobTransfer(api, name, offset, total, out, null, l);
+    }
+
+    // writes the content of in to the variable, starting at offset
+    @NonNull
+    static BlobTransfer upload(String api, String name, long offset,
+                               @NonNull ReadableByteChannel in, @Nullable Listener l) {
+        long total = -1;
+        if (in instanceof SeekableByteChannel) {
+            try {
+                total = ((SeekableByteChannel) in).size();
+            } catch (IOException e) {
+                Log.d(TAG, "Unable to find size of upload", e);
+            }
+        }
+        return new BlobTransfer(api, name, offset, total, null, in, l);
+    }
+
+    public synchronized long getTransferred() {
+        return offset;
+    }
+
+    // starts the transfer, or continues it after an error. the source of an
+    // upload is read off the calling thread, which is usually the main thread
+    public synchronized void resume() {
+        if (running || cancelled) {
+            return;
+        }
+        running = true;
+        retries = 0;
+        RequestExecutor.REQUEST_POOL.execute(this::next);
+    }
+
+    // stops the transfer, no further callbacks are made
+    public synchronized void cancel() {
+        cancelled = true;
+        running = false;
+        if (request != null) {
+            request.cancel(true);
+            request = null;
+        }
+    }
+
+    private synchronized void next() {
+        if (!running) {
+            return;
+        }
+        if (upload) {
+            nextWrite();
+        } else {
+            nextRead();
+        }
+    }
+
+    private void nextRead() {
+        List<Map.Entry<String, String>> params = new ArrayList<>(3);
+        params.add(new AbstractMap.SimpleImmutableEntry<>("var", name));
+        params.add(new AbstractMap.SimpleImmutableEntry<>("off", Long.toString(offset)));
+        params.add(new AbstractMap.SimpleImmutableEntry<>("len", Integer.toString(READ_CHUNK_SIZE)));
+        // the chunk is written to the sink on the request thread as it arrives
+        request = Request.submit(api + "get", params, Priority.BACKGROUND, new ChunkDecoder(chunk),
+                this::onRead, RequestExecutor.REQUEST_THREAD);
+    }
+
+    // runs on the request thread, so the sink is written off the main thread
+    private synchronized void onRead(ByteBuffer received) {
+        if (!running) {
+            return;
+        }
+        if (received == null) {
+            failed();
+            return;
+        }
+        int n = received.remaining();
+        try {
+            while (received.hasRemaining()) {
+                sink.write(received);
+            }
+        } catch (IOException e) {
+            // not something a retry would fix
+            Log.e(TAG, "Unable to store download of " + name, e);
+            retries = MAX_RETRIES;
+            failed();
+            return;
+        }
+        retries = 0;
+        offset += n;
+        if (n < READ_CHUNK_SIZE) {
+            completed();
+        } else {
+            progress();
+            next();
+        }
+    }
+
+    private void nextWrite() {
+        if (!pending_valid) {
+            pending.clear();
+            try {
+                int n = 0;
+                while (pending.hasRemaining() && (n = source.read(pending)) >= 0) {
+                    // fill the chunk
+                }
+                pending_last = n < 0;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read upload of " + name, e);
+                failed();
+                return;
+            }
+            pending.flip();
+            pending_valid = true;
+        }
+
+        char[] hex = new char[pending.remaining() * 2];
+        for (int i = 0; i < pending.remaining(); i++) {
+            int b = pending.get(pending.position() + i) & 0xff;
+            hex[2 * i] = HEX[b >> 4];
+            hex[2 * i + 1] = HEX[b & 0xf];
+        }
+        List<Map.Entry<String, String>> params = new ArrayList<>(4);
+        params.add(new AbstractMap.SimpleImmutableEntry<>("var", name));
+        params.add(new AbstractMap.SimpleImmutableEntry<>("off", Long.toString(offset)));
+        params.add(new AbstractMap.SimpleImmutableEntry<>("val", new String(hex)));
+        if (pending_last) {
+            params.add(new AbstractMap.SimpleImmutableEntry<>("last", "1"));
+        }
+        request = Request.submit(new RequestArguments(params, api + "set", Priority.BACKGROUND, this::onWritten),
+                RequestExecutor.REQUEST_THREAD);
+    }
+
+    private synchronized void onWritten(JSONObject obj) {
+        if (!running) {
+            return;
+        }
+        if (obj == null || !"ok".equals(obj.optString("result"))) {
+            if (obj != null) {
+                Log.e(TAG, "Error returned from server while writing " + name + ": " + obj.optString("result"));
+            }
+            failed();
+            return;
+        }
+        retries = 0;
+        offset += pending.remaining();
+        pending_valid = false;
+        if (pending_last) {
+            completed();
+        } else {
+            progress();
+            next();
+        }
+    }
+
+    private void progress() {
+        if (listener != null) {
+            final long transferred = offset;
+            RequestExecutor.MAIN_THREAD.execute(() -> listener.onProgress(transferred, total));
+        }
+    }
+
+    private void completed() {
+        running = false;
+        request = null;
+        if (listener != null) {
+            final long transferred = offset;
+            RequestExecutor.MAIN_THREAD.execute(() -> listener.onComplete(transferred));
+        }
+    }
+
+    private void failed() {
+        if (retries++ < MAX_RETRIES) {
+            Log.d(TAG, "Retrying chunk at " + offset + " of " + name);
+            next();
+            return;
+        }
+        Log.e(TAG, "Transfer of " + name + " stopped at " + offset);
+        running = false;
+        request = null;
+        if (listener != null) {
+            final long transferred = offset;
+            RequestExecutor.MAIN_THREAD.execute(() -> listener.onError(transferred));
+        }
+    }
+
+    // reads the body of a ranged get into the chunk buffer
+    private static class ChunkDecoder implements ResponseDecoder<ByteBuffer> {
+        private final ByteBuffer chunk;
+
+        ChunkDecoder(ByteBuffer chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public ByteBuffer decode(InputStream body) throws IOException {
+            chunk.clear();
+            byte[] buffer = chunk.array();
+            int n;
+            while ((n = body.read(buffer, chunk.position(), chunk.remaining())) > 0) {
+                chunk.position(chunk.position() + n);
+            }
+            if (n != -1 && body.read() != -1) {
+                Log.e(TAG, "Device returned more than the requested range");
+                return null;
+            }
+            chunk.flip();
+            return chunk;
+        }
+    }
+
+    // a buffer as the channel of a transfer, downloads are stored in its
+    // remaining space and uploads send its remaining bytes
+    @NonNull
+    public static ByteBufferChannel wrap(@NonNull ByteBuffer buffer) {
+        return new ByteBufferChannel(buffer);
+    }
+
+    public static class ByteBufferChannel implements ReadableByteChannel, WritableByteChannel {
+        private final ByteBuffer buffer;
+        private boolean open = true;
+
+        private ByteBufferChannel(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(dst.remaining(), buffer.remaining());
+            ByteBuffer src = buffer.duplicate();
+            src.limit(src.position() + n);
+            dst.put(src);
+            buffer.position(buffer.position() + n);
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (src.remaining() > buffer.remaining()) {
+                throw new IOException("Buffer too small for download");
+            }
+            int n = src.remaining();
+            buffer.put(src);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
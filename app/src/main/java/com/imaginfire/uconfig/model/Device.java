@@ -19,47 +19,67 @@ package com.imaginfire.uconfig.model;
 
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
+import android.os.SystemClock;
+import android.util.Log;
 
-import java.net.InetAddress;
-import java.util.ArrayList;
+import com.imaginfire.uconfig.http.Connection;
 
-import static java.lang.Integer.max;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
 
 public class Device {
+    private static final String TAG = "Device";
     final InetAddress address;
-    public static final int max_ttl = 45*4;
-    private final MutableLiveData<Integer> ttl = new MutableLiveData<>();
+    final String id;
+    // milliseconds without a beacon before the device is removed
+    public static final int max_ttl = 45000;
+    private volatile long last_seen;
+    private final MutableLiveData<Boolean> expired = new MutableLiveData<>();
     private final String name;
     private final String api;
-    private final ArrayList<OnVariableBroadcastListener> listeners = new ArrayList<>();
+    private final VariableSubscriptions subscriptions = new VariableSubscriptions();
+    private final ValueCache values = new ValueCache();
+    // templates are only interned while in use, holding the schema of the device
+    // keeps it for other devices with the same firmware and for cached schemas
+    private volatile SchemaTemplate template = null;
 
-    Device(InetAddress a, String api, String n) {
+    Device(InetAddress a, String api, String n, String id) {
         address = a;
         this.api = api;
-        name = n;
+        this.id = id;
+        name = n + " (" + id + ")";
         touch();
     }
 
     void touch() {
-        synchronized (this) {
-            ttl.postValue(max_ttl);
-        }
+        last_seen = SystemClock.elapsedRealtime();
+    }
+
+    long getDeadline() {
+        return last_seen + max_ttl;
+    }
+
+    void expire() {
+        expired.postValue(true);
     }
 
-    boolean tick() {
-        int i;
-        synchronized (this) {
-            if (ttl.getValue() == null) {
-                return true;
-            }
-            i = max(0,ttl.getValue() - 1);
-            ttl.postValue(i);
+    // remaining ttl in milliseconds, relative to SystemClock.elapsedRealtime
+    public int getTTL(long now) {
+        return (int) Math.max(0, Math.min(max_ttl, getDeadline() - now));
+    }
+
+    // release the keep-alive connection held open to the device
+    void disconnect() {
+        try {
+            Connection.close(new URL(getApiLocation()));
+        } catch (MalformedURLException e) {
+            Log.w(TAG, "Invalid api location: " + getApiLocation());
         }
-        return i == 0;
     }
 
-    public LiveData<Integer> getTTL() {
-        return ttl;
+    public LiveData<Boolean> getExpired() {
+        return expired;
     }
 
     public String getName() {
@@ -75,17 +95,28 @@ public class Device {
         return getName() + " " + address.getHostAddress();
     }
 
-    public void addVariableBroadcastListener(OnVariableBroadcastListener l) {
-        listeners.add(l);
+    // l receives the broadcasts of the variable var, on the receiver thread
+    void subscribe(String var, OnVariableBroadcastListener l) {
+        subscriptions.subscribe(var, l);
+    }
+
+    void unsubscribe(String var, OnVariableBroadcastListener l) {
+        subscriptions.unsubscribe(var, l);
+    }
+
+    ValueCache getValueCache() {
+        return values;
     }
 
-    public void removeVariableBroadcastListener(OnVariableBroadcastListener l) {
-        listeners.remove(l);
+    void setSchemaTemplate(SchemaTemplate t) {
+        template = t;
     }
 
     void onVariableUpdate(String var, Value value) {
-        for (OnVariableBroadcastListener l : listeners) {
-            l.onVariableBroadcast(var, value);
+        // broadcast values are as fresh as a read
+        values.put(var, value);
+        if (!subscriptions.publish(var, value) && Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Variable broadcast without subscribers received for: " + var);
         }
     }
 
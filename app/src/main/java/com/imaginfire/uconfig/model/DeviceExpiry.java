@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.model;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+// holds a single entry per device that becomes available once the devices ttl
+// could have run out, the device is then either rescheduled or expired
+class DeviceExpiry {
+    private final DelayQueue<Entry> queue = new DelayQueue<>();
+
+    void schedule(@NonNull Device d) {
+        queue.put(new Entry(d, d.getDeadline()));
+    }
+
+    // schedules d in place of the devices it replaced in the registry, those
+    // with the same id or address. returns the devices that were replaced
+    @NonNull
+    List<Device> replace(@NonNull Device d) {
+        ArrayList<Device> replaced = new ArrayList<>(1);
+        queue.removeIf(e -> {
+            if (e.device != d && (e.device.id.equals(d.id) || e.device.address.equals(d.address))) {
+                replaced.add(e.device);
+                return true;
+            }
+            return false;
+        });
+        schedule(d);
+        return replaced;
+    }
+
+    // blocks until a device has not been seen for its full ttl
+    @NonNull
+    Device take() throws InterruptedException {
+        while (true) {
+            Entry e = queue.take();
+            long deadline = e.device.getDeadline();
+            if (deadline <= SystemClock.elapsedRealtime()) {
+                return e.device;
+            }
+            e.deadline = deadline;
+            queue.put(e);
+        }
+    }
+
+    private static class Entry implements Delayed {
+        final Device device;
+        long deadline;
+
+        Entry(Device d, long deadline) {
+            device = d;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(@NonNull TimeUnit unit) {
+            return unit.convert(deadline - SystemClock.elapsedRealtime(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(@NonNull Delayed o) {
+            if (o instanceof Entry) {
+                return Long.compare(deadline, ((Entry) o).deadline);
+            }
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.model;
+
+import android.support.annotation.NonNull;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+class DeviceRegistry {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int CONCURRENCY_LEVEL = 4;
+
+    private final ConcurrentHashMap<String, Device> by_id =
+            new ConcurrentHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, CONCURRENCY_LEVEL);
+    private final ConcurrentHashMap<InetAddress, Device> by_address =
+            new ConcurrentHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, CONCURRENCY_LEVEL);
+    // structural changes are serialised, lookups never take this lock
+    private final Object writer = new Object();
+    private volatile List<Device> snapshot = Collections.emptyList();
+
+    Device get(InetAddress address) {
+        return by_address.get(address);
+    }
+
+    @NonNull
+    List<Device> snapshot() {
+        return snapshot;
+    }
+
+    // returns the device that was created, or null if the beacon was from a known device
+    Device beacon(@NonNull InetAddress address, @NonNull String api, @NonNull String name, @NonNull String id) {
+        Device d = by_address.get(address);
+        if (d != null && d.id.equals(id)) {
+            d.touch();
+            return null;
+        }
+        synchronized (writer) {
+            d = by_address.get(address);
+            if (d != null && d.id.equals(id)) {
+                d.touch();
+                return null;
+            }
+            // either a new device, a device that changed address or an address that
+            // has been reassigned to another device
+            if (d != null) {
+                unlink(d);
+            }
+            d = by_id.get(id);
+            if (d != null) {
+                unlink(d);
+            }
+            d = new Device(address, api, name, id);
+            by_id.put(id, d);
+            by_address.put(address, d);
+            publish(d);
+            return d;
+        }
+    }
+
+    boolean remove(Device d) {
+        synchronized (writer) {
+            if (unlink(d)) {
+                publish(null);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private boolean unlink(Device d) {
+        boolean removed = by_id.remove(d.id, d);
+        removed |= by_address.remove(d.address, d);
+        return removed;
+    }
+
+    // copy-on-write, keeps devices in the order they were discovered
+    private void publish(Device added) {
+        List<Device> current = snapshot;
+        ArrayList<Device> next = new ArrayList<>(current.size() + 1);
+        for (Device d : current) {
+            if (by_id.get(d.id) == d) {
+                next.add(d);
+            }
+        }
+        if (added != null) {
+            next.add(added);
+        }
+        snapshot = Collections.unmodifiableList(next);
+    }
+}
@@ -23,46 +23,47 @@ import android.arch.lifecycle.ViewModel;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import com.imaginfire.uconfig.http.CircuitBreaker;
 
 import java.net.InetAddress;
-import java.util.ArrayList;
 import java.util.List;
 
 public class DeviceViewModel extends ViewModel implements UDPReceiver.OnEventListener {
     private static final String TAG = "DeviceViewModel";
     private boolean closed = false;
-    private final ArrayList<Device> _devices_list = new ArrayList<>();
-    private final MutableLiveData<ArrayList<Device>> devices_list = new MutableLiveData<>();
+    private final DeviceRegistry registry = new DeviceRegistry();
+    private final MutableLiveData<List<Device>> devices_list = new MutableLiveData<>();
     private final MutableLiveData<Boolean> is_scan_error = new MutableLiveData<>();
     private final UDPReceiver udpserver_thread = new UDPReceiver();
-    private final Thread tick_thread = new Thread(new Runnable() {
+    private final DeviceExpiry expiry = new DeviceExpiry();
+    private final Thread expiry_thread = new Thread(new Runnable() {
         @Override
         public void run() {
             while (!closed && !Thread.interrupted()) {
+                Device d;
                 try {
-                    Thread.sleep(250);
+                    d = expiry.take();
                 } catch (InterruptedException e) {
-                    Log.d(TAG, "Tick thread exit");
+                    Log.d(TAG, "Expiry thread exit");
                     return;
                 }
-                synchronized (tick_thread) {
-                    if (_devices_list.removeIf(Device::tick)) {
-                        notify_update();
-                    }
+                // a device that was replaced is no longer registered, and its
+                // connection may now be to the device that replaced it
+                if (registry.remove(d)) {
+                    d.expire();
+                    d.disconnect();
+                    notify_update();
                 }
             }
         }
     });
 
     public DeviceViewModel() {
-        devices_list.setValue(new ArrayList<>());
+        devices_list.setValue(registry.snapshot());
         is_scan_error.setValue(false);
         udpserver_thread.setEventListener(this);
         udpserver_thread.start();
-        tick_thread.start();
+        expiry_thread.start();
     }
 
     public LiveData<? extends List<Device>> getDeviceList() {
@@ -70,75 +71,76 @@ public class DeviceViewModel extends ViewModel implements UDPReceiver.OnEventLis
     }
 
     private void notify_update() {
-        devices_list.postValue(new ArrayList<>(_devices_list));
+        devices_list.postValue(registry.snapshot());
     }
 
     @Override
-    public void OnReceive(InetAddress address, JSONObject packet) {
-        JSONObject beacon = packet.optJSONObject("beacon");
-        if (beacon != null) {
-            try {
-                String api = beacon.getString("api");
-                String name = beacon.getString("name");
-                String id = beacon.getString("id");
-                beacon(address, api, name, id);
-            } catch (JSONException e) {
-                Log.e(TAG, "invalid beacon received", e);
+    public void OnReceive(InetAddress address, BeaconRecord packet) {
+        if (packet.beacon) {
+            if (packet.isValidBeacon()) {
+                beacon(address, packet.api, packet.name, packet.id);
+            } else {
+                Log.e(TAG, "invalid beacon received");
             }
         }
-        JSONObject data = packet.optJSONObject("data");
-        if (data != null) {
-            try {
-                String name = data.getString("name");
-                String type = data.getString("type");
-                Value v = null;
-                if (type.equals("INT")) {
-                    v = new Value(null, data.getInt("value"), null);
-                }
-                if (type.equals("UINT8")) {
-                    int i = data.getInt("value");
-                    if (i < 0 || i > 0xFF) {
-                        Log.w(TAG, "Out of range value for UINT8 received, ignoring.");
-                    } else {
-                        v = new Value(i, null, null);
-                    }
-                }
-                if (type.equals("STRING")) {
-                    v = new Value(null, null, data.getString("value"));
-                }
+        if (packet.data) {
+            if (!packet.isValidData()) {
+                Log.e(TAG, "invalid data beacon received");
+                return;
+            }
+            Value v;
+            if (packet.value_kind == BeaconRecord.Kind.Number) {
+                v = packet.data_codec.fromNumber(packet.number_value);
+            } else if (packet.value_kind == BeaconRecord.Kind.Decimal) {
+                v = packet.data_codec.fromDecimal(packet.string_value);
+            } else {
+                v = packet.data_codec.fromString(packet.string_value);
+            }
 
-                if (v != null) {
-                    update(address, name, v);
-                } else {
-                    Log.w(TAG, "Unable to translate data beacon, ignoring.");
-                }
-            } catch (JSONException e) {
-                Log.e(TAG, "invalid data beacon received", e);
+            if (v != null) {
+                update(address, packet.data_name, v);
+            } else {
+                Log.w(TAG, "Unable to translate data beacon, ignoring.");
             }
         }
     }
 
+    @Override
+    public boolean OnRepeat(InetAddress address) {
+        Device d = registry.get(address);
+        if (d != null) {
+            d.touch();
+            alive(address);
+            return true;
+        }
+        return false;
+    }
+
     private void beacon(InetAddress address, String api, String name, String id) {
-        synchronized (tick_thread) {
-            for (Device d : _devices_list) {
-                if (d.address.equals(address)) {
-                    d.touch();
-                    return;
+        Device d = registry.beacon(address, api, name, id);
+        alive(address);
+        if (d != null) {
+            for (Device replaced : expiry.replace(d)) {
+                // the connection is kept if the new device took over the address
+                replaced.expire();
+                if (!replaced.address.equals(d.address)) {
+                    replaced.disconnect();
                 }
             }
-            _devices_list.add(new Device(address, api, name + " (" + id + ")"));
             notify_update();
         }
     }
 
+    // any beacon from the device, repeated or not, shows it is alive, so stop
+    // failing requests to it
+    private void alive(InetAddress address) {
+        CircuitBreaker.forHost(address.getHostAddress()).reset();
+    }
+
     private void update(InetAddress address, @NonNull String name, @NonNull Value v) {
-        synchronized (tick_thread) {
-            for (Device d : _devices_list) {
-                if (d.address.equals(address)) {
-                    d.onVariableUpdate(name, v);
-                    return;
-                }
-            }
+        Device d = registry.get(address);
+        if (d != null) {
+            d.onVariableUpdate(name, v);
         }
     }
 
@@ -148,7 +150,7 @@ public class DeviceViewModel extends ViewModel implements UDPReceiver.OnEventLis
         closed = true;
         udpserver_thread.shutdown();
 
-        tick_thread.interrupt();
+        expiry_thread.interrupt();
     }
 
     @Override
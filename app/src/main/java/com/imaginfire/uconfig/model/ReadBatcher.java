@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.imaginfire.uconfig.http.CircuitBreaker;
+import com.imaginfire.uconfig.http.Request;
+import com.imaginfire.uconfig.http.RequestArguments;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// collects the reads of a device's variables made within a short window and
+// requests them together as get?var=a&var=b. variables that are missing from
+// the response, or all of them if the batch fails, are read one at a time.
+// a variable read again before the batch is sent is only requested once, but
+// every caller is told if the read fails.
+class ReadBatcher {
+    private static final String TAG = "ReadBatcher";
+    private static final int WINDOW = 20;
+    // keep urls short enough for embedded servers
+    private static final int MAX_BATCH_SIZE = 16;
+    // consecutive failed batches before assuming the device does not support them
+    private static final int MAX_FAILURES = 2;
+
+    private final String api;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<Variable, List<OnAction>> pending = new LinkedHashMap<>();
+    private final ArrayList<Request<?>> requests = new ArrayList<>();
+    private final Runnable flush = this::flush;
+    private boolean scheduled = false;
+    private boolean cancelled = false;
+    private int failures = 0;
+    private boolean supported = true;
+
+    ReadBatcher(String api) {
+        this.api = api;
+    }
+
+    void read(Variable v, OnAction fail) {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            if (supported) {
+                List<OnAction> fails = pending.computeIfAbsent(v, k -> new ArrayList<>(1));
+                if (fail != null) {
+                    fails.add(fail);
+                }
+                if (!scheduled) {
+                    scheduled = true;
+                    handler.postDelayed(flush, WINDOW);
+                }
+                return;
+            }
+        }
+        v.readSingle(fail == null ? Collections.emptyList() : Collections.singletonList(fail));
+    }
+
+    // returns true if a read of v was waiting to be sent
+    synchronized boolean remove(Variable v) {
+        return pending.remove(v) != null;
+    }
+
+    // drops pending reads and abandons batches that are in progress
+    synchronized void cancel() {
+        cancelled = true;
+        handler.removeCallbacks(flush);
+        pending.clear();
+        for (Request<?> r : requests) {
+            r.cancel(true);
+        }
+        requests.clear();
+    }
+
+    private void flush() {
+        ArrayList<Map.Entry<Variable, List<OnAction>>> reads;
+        synchronized (this) {
+            scheduled = false;
+            reads = new ArrayList<>(pending.entrySet());
+            pending.clear();
+        }
+        for (int i = 0; i < reads.size(); i += MAX_BATCH_SIZE) {
+            send(reads.subList(i, Math.min(reads.size(), i + MAX_BATCH_SIZE)));
+        }
+    }
+
+    private void send(List<Map.Entry<Variable, List<OnAction>>> batch) {
+        boolean single;
+        synchronized (this) {
+            single = batch.size() == 1 || !supported;
+        }
+        if (single) {
+            for (Map.Entry<Variable, List<OnAction>> e : batch) {
+                e.getKey().readSingle(e.getValue());
+            }
+            return;
+        }
+
+        ArrayList<Map.Entry<String, String>> params = new ArrayList<>(batch.size());
+        for (Map.Entry<Variable, List<OnAction>> e : batch) {
+            params.add(new AbstractMap.SimpleImmutableEntry<>("var", e.getKey().getName()));
+        }
+        Request<?>[] request = new Request<?>[1];
+        synchronized (this) {
+            request[0] = Request.submit(new RequestArguments(params, api + "get", obj -> {
+                synchronized (ReadBatcher.this) {
+                    requests.remove(request[0]);
+                }
+                boolean complete = obj != null;
+                for (Map.Entry<Variable, List<OnAction>> e : batch) {
+                    if (obj != null && obj.has(e.getKey().getName())) {
+                        e.getKey().onReadResponse(obj, e.getValue());
+                    } else {
+                        complete = false;
+                        e.getKey().readSingle(e.getValue());
+                    }
+                }
+                // a device that is not responding says nothing about batch support
+                if (obj != null || CircuitBreaker.forUrl(api).getState() == CircuitBreaker.State.CLOSED) {
+                    onBatchResult(complete);
+                }
+            }));
+            requests.add(request[0]);
+        }
+    }
+
+    private synchronized void onBatchResult(boolean complete) {
+        if (complete) {
+            failures = 0;
+        } else if (++failures >= MAX_FAILURES && supported) {
+            Log.i(TAG, "Batched reads not supported by " + api + ", reading variables individually");
+            supported = false;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.model;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// schemas downloaded from devices, stored on disk under the id from their
+// beacon. a cached schema is shown straight away and checked against the
+// device in the background, the hash of its content tells if it changed.
+public final class SchemaCache {
+    private static final String TAG = "SchemaCache";
+    // a device is asked for its schema again at most this often (ms)
+    private static final long REVALIDATE_INTERVAL = 10 * 60 * 1000;
+    // keeps the hex encoded file name within file system limits
+    private static final int MAX_ID_LENGTH = 100;
+
+    private static volatile File directory = null;
+    private static final ConcurrentHashMap<String, Long> validated = new ConcurrentHashMap<>();
+
+    private SchemaCache() {
+    }
+
+    // without a directory nothing is cached
+    public static void initialise(@NonNull File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Unable to create schema cache in " + dir);
+            return;
+        }
+        directory = dir;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not supported.", e);
+        }
+    }
+
+    // returns the stored schema or null, this reads from disk
+    static byte[] load(@NonNull String id) {
+        File f = file(id);
+        if (f == null || !f.isFile()) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cached schema of " + id, e);
+            return null;
+        }
+    }
+
+    // replaces the stored schema, this writes to disk
+    static void store(@NonNull String id, @NonNull byte[] schema) {
+        File f = file(id);
+        if (f == null) {
+            return;
+        }
+        // write a copy first so a partially written schema is never read back
+        File tmp = new File(f.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(schema);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to cache schema of " + id, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(f)) {
+            Log.w(TAG, "Unable to replace cached schema of " + id);
+            tmp.delete();
+        }
+    }
+
+    // true if the cached schema of the device has not been checked recently
+    static boolean needsRevalidation(@NonNull String id) {
+        Long last = validated.get(id);
+        return last == null || SystemClock.elapsedRealtime() - last > REVALIDATE_INTERVAL;
+    }
+
+    static void validated(@NonNull String id) {
+        validated.put(id, SystemClock.elapsedRealtime());
+    }
+
+    private static File file(String id) {
+        File dir = directory;
+        // ids come from the network, hex encode them to get a safe file name
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (dir == null || bytes.length == 0 || bytes.length > MAX_ID_LENGTH) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        sb.append(".json");
+        return new File(dir, sb.toString());
+    }
+}
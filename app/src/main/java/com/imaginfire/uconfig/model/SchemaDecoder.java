@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.model;
+
+import com.imaginfire.uconfig.http.ResponseDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// reads the schema of a device and creates the variables and actions that
+// hold its state. runs on the request thread, so large schemas do not hold
+// up the ui. the structure is shared with other devices serving the same schema.
+// the bytes of the schema and their hash are kept so it can be cached.
+class SchemaDecoder implements ResponseDecoder<SchemaDecoder.Schema> {
+    static class Schema {
+        final SchemaTemplate template;
+        final List<Variable> variables;
+        final List<Action> actions;
+        final byte[] hash;
+        final byte[] source;
+
+        Schema(SchemaTemplate template, List<Variable> variables, List<Action> actions, byte[] source) {
+            this.template = template;
+            this.variables = Collections.unmodifiableList(variables);
+            this.actions = Collections.unmodifiableList(actions);
+            this.hash = template.getHash();
+            this.source = source;
+        }
+    }
+
+    // copies everything read through it
+    private static class CopyInputStream extends FilterInputStream {
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CopyInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                copy.write(b, off, n);
+            }
+            return n;
+        }
+    }
+
+    private final String api;
+    private final ReadBatcher batcher;
+    private final ValueCache cache;
+
+    SchemaDecoder(String api, ReadBatcher batcher, ValueCache cache) {
+        this.api = api;
+        this.batcher = batcher;
+        this.cache = cache;
+    }
+
+    @Override
+    public Schema decode(InputStream body) throws IOException {
+        DigestInputStream digest = new DigestInputStream(body, SchemaCache.newDigest());
+        CopyInputStream copy = new CopyInputStream(digest);
+        SchemaTemplate t = SchemaTemplate.parse(copy);
+        if (t == null) {
+            return null;
+        }
+        // the reader stops at the end of the root object, hash anything after it too
+        byte[] rest = new byte[256];
+        while (copy.read(rest, 0, rest.length) != -1) {
+            // keep reading
+        }
+        byte[] source = copy.copy.toByteArray();
+        return bind(SchemaTemplate.intern(digest.getMessageDigest().digest(), t), source);
+    }
+
+    // decodes a cached schema, it is only parsed if no other device uses it
+    Schema decode(byte[] source) throws IOException {
+        SchemaTemplate t = SchemaTemplate.lookup(SchemaCache.newDigest().digest(source));
+        if (t != null) {
+            return bind(t, source);
+        }
+        return decode(new ByteArrayInputStream(source));
+    }
+
+    private Schema bind(SchemaTemplate t, byte[] source) {
+        ArrayList<Variable> variables = new ArrayList<>(t.variables.size());
+        for (SchemaTemplate.VariableSpec spec : t.variables) {
+            variables.add(new Variable(api, spec, batcher, cache));
+        }
+        ArrayList<Action> actions = new ArrayList<>(t.actions.size());
+        for (SchemaTemplate.ActionSpec spec : t.actions) {
+            actions.add(new Action(api, spec));
+        }
+        return new Schema(t, variables, actions, source);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.model;
+
+import android.support.annotation.NonNull;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.imaginfire.uconfig.http.JsonDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// the structure of a schema, without any state of the device that serves it.
+// devices running the same firmware serve the same schema, so templates are
+// interned by the hash of their content and shared between devices. the
+// variables and actions of a device only hold their own state and refer to
+// the specs here.
+final class SchemaTemplate {
+    private static final String TAG = "SchemaTemplate";
+    private static final ConcurrentHashMap<ByteBuffer, WeakReference<SchemaTemplate>> templates =
+            new ConcurrentHashMap<>();
+
+    static final class VariableSpec {
+        final String name;
+        final ValueCodec codec;
+        final Value.Type type;
+        final boolean read;
+        final boolean write;
+
+        private VariableSpec(String name, ValueCodec codec, boolean read, boolean write) {
+            this.name = name;
+            this.codec = codec;
+            this.type = codec.type;
+            this.read = read;
+            this.write = write;
+        }
+    }
+
+    static final class ActionSpec {
+        final String name;
+        final Map<String, Value.Type> params;
+        final String display;
+
+        private ActionSpec(String name, LinkedHashMap<String, Value.Type> params) {
+            this.name = name;
+            this.params = Collections.unmodifiableMap(params);
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(name);
+            sb.append('(');
+            for (String p : params.keySet()) {
+                if (sb.charAt(sb.length() - 1) != '(') {
+                    sb.append(',');
+                }
+                sb.append(p);
+            }
+            sb.append(')');
+            display = sb.toString();
+        }
+    }
+
+    final List<VariableSpec> variables;
+    final List<ActionSpec> actions;
+    private byte[] hash = null;
+
+    private SchemaTemplate(List<VariableSpec> variables, List<ActionSpec> actions) {
+        this.variables = Collections.unmodifiableList(variables);
+        this.actions = Collections.unmodifiableList(actions);
+    }
+
+    byte[] getHash() {
+        return hash;
+    }
+
+    // returns null if the body is not a schema
+    static SchemaTemplate parse(@NonNull InputStream body) throws IOException {
+        return Parser.INSTANCE.decode(body);
+    }
+
+    // returns the template of the schema with the given hash if it is in use
+    static SchemaTemplate lookup(@NonNull byte[] hash) {
+        WeakReference<SchemaTemplate> ref = templates.get(ByteBuffer.wrap(hash));
+        return ref == null ? null : ref.get();
+    }
+
+    // returns the template already in use for the hash, or t if there is none
+    static SchemaTemplate intern(@NonNull byte[] hash, @NonNull SchemaTemplate t) {
+        t.hash = hash;
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        WeakReference<SchemaTemplate> ref = new WeakReference<>(t);
+        while (true) {
+            WeakReference<SchemaTemplate> existing = templates.putIfAbsent(key, ref);
+            if (existing == null) {
+                break;
+            }
+            SchemaTemplate e = existing.get();
+            if (e != null) {
+                return e;
+            }
+            // the template was no longer used by any device
+            if (templates.replace(key, existing, ref)) {
+                break;
+            }
+        }
+        // forget templates that are no longer used
+        templates.values().removeIf(r -> r.get() == null);
+        return t;
+    }
+
+    private static class Parser extends JsonDecoder<SchemaTemplate> {
+        static final Parser INSTANCE = new Parser();
+
+        @Override
+        protected SchemaTemplate decode(JsonReader reader) throws IOException {
+            ArrayList<VariableSpec> variables = new ArrayList<>();
+            ArrayList<ActionSpec> actions = new ArrayList<>();
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                Log.e(TAG, "Not a JSON object at root");
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String section = reader.nextName();
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (section) {
+                    case "DATA":
+                        readVariables(reader, variables);
+                        break;
+                    case "ACTION":
+                        readActions(reader, actions);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return new SchemaTemplate(variables, actions);
+        }
+
+        private static void readVariables(JsonReader reader, List<VariableSpec> variables) throws IOException {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+                boolean read = false;
+                boolean write = false;
+                String type = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    JsonToken token = reader.peek();
+                    if (key.equals("READ") && token == JsonToken.BOOLEAN) {
+                        read = reader.nextBoolean();
+                    } else if (key.equals("WRITE") && token == JsonToken.BOOLEAN) {
+                        write = reader.nextBoolean();
+                    } else if (key.equals("TYPE") && token == JsonToken.STRING) {
+                        type = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                ValueCodec codec = ValueCodec.forWireName(type);
+                if (codec == null) {
+                    Log.w(TAG, "Ignoring variable with missing or unknown type: " + name);
+                    continue;
+                }
+                Log.d(TAG, name + ":" + type + "(" + read + "|" + write + ")");
+                variables.add(new VariableSpec(name, codec, read, write));
+            }
+            reader.endObject();
+        }
+
+        private static void readActions(JsonReader reader, List<ActionSpec> actions) throws IOException {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+                LinkedHashMap<String, Value.Type> params = new LinkedHashMap<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String param_name = reader.nextName();
+                    ValueCodec codec = null;
+                    if (reader.peek() == JsonToken.STRING) {
+                        codec = ValueCodec.forWireName(reader.nextString());
+                    } else {
+                        reader.skipValue();
+                    }
+                    if (codec != null) {
+                        params.put(param_name, codec.type);
+                    }
+                }
+                reader.endObject();
+                actions.add(new ActionSpec(name, params));
+            }
+            reader.endObject();
+        }
+    }
+}
@@ -22,23 +22,27 @@ import android.arch.lifecycle.MutableLiveData;
 import android.arch.lifecycle.ViewModel;
 import android.util.Log;
 
+import com.imaginfire.uconfig.http.Priority;
 import com.imaginfire.uconfig.http.Request;
-import com.imaginfire.uconfig.http.RequestArguments;
+import com.imaginfire.uconfig.http.RequestExecutor;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-public class SchemaViewModel extends ViewModel implements Device.OnVariableBroadcastListener {
+public class SchemaViewModel extends ViewModel {
     private static final String TAG = "SchemaViewModel";
     private int initialised = 0;
-    private final ArrayList<Variable> _variables = new ArrayList<>();
-    private final ArrayList<Action> _actions = new ArrayList<>();
-    private Request task = null;
+    private List<Variable> _variables = Collections.emptyList();
+    private List<Action> _actions = Collections.emptyList();
+    private Request<SchemaDecoder.Schema> task = null;
     private Device device = null;
+    private ReadBatcher batcher = null;
+    private SchemaDecoder decoder = null;
+    // hash of the published schema
+    private byte[] hash = null;
+    private boolean cleared = false;
 
     private final MutableLiveData<List<Variable>> variables = new MutableLiveData<>();
     private final MutableLiveData<List<Action>> actions = new MutableLiveData<>();
@@ -50,72 +54,98 @@ public class SchemaViewModel extends ViewModel implements Device.OnVariableBroad
         if (initialised == 0) {
             initialised = 1;
             device = d;
-            device.addVariableBroadcastListener(this);
-            task = new Request();
-            task.execute(new RequestArguments(null, d.getApiLocation() + "schema", jsonObject -> {
-                if (jsonObject == null) {
-                    return;
-                }
-                if (jsonObject.has("DATA")) {
+            batcher = new ReadBatcher(d.getApiLocation());
+            decoder = new SchemaDecoder(d.getApiLocation(), batcher, d.getValueCache());
+            String id = d.id;
+            // reading the cache touches the disk, so it is done off the main thread too
+            RequestExecutor.DISK.execute(() -> {
+                SchemaDecoder.Schema cached = null;
+                byte[] source = SchemaCache.load(id);
+                if (source != null) {
                     try {
-                        JSONObject data = jsonObject.getJSONObject("DATA");
-                        for (Iterator<String> k = data.keys(); k.hasNext(); ) {
-                            String name = k.next();
-                            JSONObject variable = data.optJSONObject(name);
-                            if (variable != null) {
-                                boolean read = variable.optBoolean("READ", false);
-                                boolean write = variable.optBoolean("WRITE", false);
-                                String type = variable.getString("TYPE");
-
-                                Log.d(TAG, name + ":" + type + "(" + read + "|" + write + ")");
-
-                                if (type.equals("UINT8")) {
-                                    _variables.add(new Variable(device.getApiLocation(), name, Value.Type.Byte, read, write));
-                                }
-                                if (type.equals("INT")) {
-                                    _variables.add(new Variable(device.getApiLocation(), name, Value.Type.Int, read, write));
-                                }
-                                if (type.equals("STRING")) {
-                                    _variables.add(new Variable(device.getApiLocation(), name, Value.Type.String, read, write));
-                                }
-                            }
-                        }
-                        JSONObject actions = jsonObject.getJSONObject("ACTION");
-                        for (Iterator<String> k = actions.keys(); k.hasNext(); ) {
-                            String name = k.next();
-                            JSONObject action = actions.optJSONObject(name);
-                            if (action != null) {
-                                Action act = new Action(device.getApiLocation(), name);
-                                for (Iterator<String> j = action.keys(); j.hasNext(); ) {
-                                    String param_name = j.next();
-                                    String param_type = action.getString(param_name);
-                                    if (param_type.equals("UINT8")) {
-                                        act.addParameter(param_name, Value.Type.Byte);
-                                    }
-                                    if (param_type.equals("INT")) {
-                                        act.addParameter(param_name, Value.Type.Int);
-                                    }
-                                    if (param_type.equals("STRING")) {
-                                        act.addParameter(param_name, Value.Type.String);
-                                    }
-                                }
-                                _actions.add(act);
-                            }
-                        }
-                    } catch (JSONException e) {
-                        Log.e(TAG, "Missing data items from JSON", e);
+                        cached = decoder.decode(source);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to decode cached schema", e);
                     }
                 }
-                initialised = 2;
-                variables.postValue(_variables);
-                actions.postValue(_actions);
-            }));
+                final SchemaDecoder.Schema schema = cached;
+                RequestExecutor.MAIN_THREAD.execute(() -> onCacheLoaded(id, schema));
+            });
         }
         if (initialised == 2) {
             variables.postValue(_variables);
         }
     }
 
+    private void onCacheLoaded(String id, SchemaDecoder.Schema cached) {
+        if (cleared) {
+            return;
+        }
+        if (cached != null) {
+            publish(cached);
+            if (!SchemaCache.needsRevalidation(id)) {
+                return;
+            }
+        }
+        byte[] cached_hash = cached == null ? null : cached.hash;
+        // revalidating a cached schema can wait for the reads it shows
+        Priority priority = cached == null ? Priority.VISIBLE : Priority.BACKGROUND;
+        // decoded on the request thread, only the finished lists reach the main thread
+        task = Request.submit(device.getApiLocation() + "schema", Collections.emptyList(), priority, decoder, schema -> {
+            if (schema != null) {
+                SchemaCache.validated(id);
+                if (!Arrays.equals(schema.hash, cached_hash)) {
+                    // writing the cache waits for the disk, which would hold up the
+                    // next request to the device
+                    RequestExecutor.DISK.execute(() -> SchemaCache.store(id, schema.source));
+                }
+            }
+            RequestExecutor.MAIN_THREAD.execute(() -> onDownloaded(schema));
+        }, RequestExecutor.REQUEST_THREAD);
+    }
+
+    private void onDownloaded(SchemaDecoder.Schema schema) {
+        if (cleared || schema == null) {
+            return;
+        }
+        if (hash != null) {
+            if (Arrays.equals(hash, schema.hash)) {
+                // the cached schema is still current
+                return;
+            }
+            Log.i(TAG, "Schema of " + device + " has changed, replacing cached version");
+            for (Variable v : _variables) {
+                device.unsubscribe(v.getName(), v);
+                v.cancel();
+            }
+            for (Action a : _actions) {
+                a.cancel();
+            }
+        }
+        publish(schema);
+    }
+
+    private void publish(SchemaDecoder.Schema schema) {
+        hash = schema.hash;
+        device.setSchemaTemplate(schema.template);
+        _variables = schema.variables;
+        _actions = schema.actions;
+        for (Variable v : _variables) {
+            device.subscribe(v.getName(), v);
+        }
+        initialised = 2;
+        variables.setValue(_variables);
+        actions.setValue(_actions);
+    }
+
+    // values of the device older than this are read again instead of being
+    // taken from the cache
+    public void setStaleAfter(int seconds) {
+        if (device != null) {
+            device.getValueCache().setStaleAfter(seconds * 1000L);
+        }
+    }
+
     public LiveData<List<Variable>> getVariables() {
         return variables;
     }
@@ -127,30 +157,20 @@ public class SchemaViewModel extends ViewModel implements Device.OnVariableBroad
     @Override
     protected void onCleared() {
         super.onCleared();
-        if (!task.isCancelled()) {
+        cleared = true;
+        if (task != null) {
             task.cancel(true);
         }
-
-        if (initialised > 0) {
-            device.removeVariableBroadcastListener(this);
+        // free the devices request slots for whatever is shown next
+        if (batcher != null) {
+            batcher.cancel();
         }
-    }
-
-    @Override
-    public void onVariableBroadcast(String var, Value value) {
-        if (initialised == 2) {
-            Log.d(TAG, "Variable broadcast received for: " + var);
-            for (Variable v : _variables) {
-                if (v.getName().equals(var)) {
-                    if (v.getType().equals(value.type)) {
-                        v.publishNewValue(value);
-                    } else {
-                        Log.w(TAG, "Variable broadcast with wrong type received for: " + var);
-                    }
-                    return;
-                }
-            }
-            Log.w(TAG, "Variable broadcast for unknown variable received: " + var);
+        for (Variable v : _variables) {
+            device.unsubscribe(v.getName(), v);
+            v.cancel();
+        }
+        for (Action a : _actions) {
+            a.cancel();
         }
     }
 }
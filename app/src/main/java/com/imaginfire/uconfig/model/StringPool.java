@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// maps utf-8 byte sequences to canonical strings, a lookup of a sequence that
+// has been seen before does not allocate. not thread safe.
+class StringPool {
+    private static final int CAPACITY = 1024;
+    private static final int MAX_SIZE = CAPACITY * 3 / 4;
+
+    private final byte[][] keys = new byte[CAPACITY][];
+    private final String[] values = new String[CAPACITY];
+    private int size = 0;
+
+    String intern(byte[] b, int offset, int length) {
+        int i = hash(b, offset, length) & (CAPACITY - 1);
+        while (keys[i] != null) {
+            if (matches(keys[i], b, offset, length)) {
+                return values[i];
+            }
+            i = (i + 1) & (CAPACITY - 1);
+        }
+        if (size >= MAX_SIZE) {
+            // names and ids are bounded by the number of devices, only a
+            // flood of distinct strings gets here so start again
+            Arrays.fill(keys, null);
+            Arrays.fill(values, null);
+            size = 0;
+            i = hash(b, offset, length) & (CAPACITY - 1);
+        }
+        keys[i] = Arrays.copyOfRange(b, offset, offset + length);
+        values[i] = new String(keys[i], StandardCharsets.UTF_8);
+        size++;
+        return values[i];
+    }
+
+    private static int hash(byte[] b, int offset, int length) {
+        int h = 1;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + b[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(byte[] key, byte[] b, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != b[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -19,21 +19,31 @@ package com.imaginfire.uconfig.model;
 
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 class UDPReceiver extends Thread {
     private static final String TAG = "UDPReceiver";
-    private DatagramSocket udp_socket = null;
+    private static final int PORT = 8003;
+    // largest udp payload that fits in a single ethernet frame
+    private static final int MAX_PACKET_SIZE = 1472;
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private final BeaconCache cache = new BeaconCache();
+    private final BeaconParser parser = new BeaconParser(MAX_PACKET_SIZE);
+    private final BeaconRecord record = new BeaconRecord();
+    private volatile Selector selector = null;
     private OnEventListener listener = null;
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
     void setEventListener(OnEventListener l) {
         listener = l;
@@ -41,51 +51,86 @@ class UDPReceiver extends Thread {
 
     @Override
     public void run() {
-        try {
-            // monitor udp port
-            udp_socket = new DatagramSocket(8003);
-            byte[] buf = new byte[256];
+        // monitor udp port
+        try (DatagramChannel channel = DatagramChannel.open();
+             Selector s = Selector.open()) {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress(PORT));
+            channel.configureBlocking(false);
+            channel.register(s, SelectionKey.OP_READ);
+            selector = s;
             Log.d(TAG, "starting udp server");
             while (!closed) {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                udp_socket.receive(packet);
-                Log.v(TAG, "Packet received from: " + packet.getAddress().getHostAddress());
-                JSONTokener json_parser = new JSONTokener(new String(packet.getData()));
-                Object data = null;
-                try {
-                    data = json_parser.nextValue();
-                } catch (JSONException e) {
-                    Log.e(TAG, "malformed JSON received in udp packet", e);
-                }
-
-                if (data instanceof JSONObject) {
-                    JSONObject payload = (JSONObject) data;
-                    OnReceive(packet.getAddress(), payload);
-                } else {
-                    Log.e(TAG, "JSON object not received in udp packet");
+                if (s.select() > 0) {
+                    s.selectedKeys().clear();
+                    drain(channel);
                 }
             }
+            Log.d(TAG, "stopping udp server");
         } catch (SocketException e) {
             OnError();
             Log.d(TAG, "error scanning network", e);
         } catch (IOException e) {
             Log.d(TAG, "stopping udp server", e);
+        } finally {
+            selector = null;
+        }
+    }
+
+    // read every datagram that is queued on the channel, a burst of beacons
+    // should be processed in a single wakeup
+    private void drain(DatagramChannel channel) throws IOException {
+        SocketAddress source;
+        while (!closed && (source = channel.receive(buffer)) != null) {
+            buffer.flip();
+            if (source instanceof InetSocketAddress) {
+                InetAddress address = ((InetSocketAddress) source).getAddress();
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "Packet received from: " + address.getHostAddress());
+                }
+                long fingerprint = BeaconCache.fingerprint(buffer);
+                if (!cache.isRepeat(address, fingerprint, buffer) || !OnRepeat(address)) {
+                    decode(address, fingerprint);
+                }
+            }
+            buffer.clear();
+        }
+    }
+
+    private void decode(InetAddress address, long fingerprint) {
+        if (!parser.parse(buffer, record)) {
+            cache.forget(address);
+            Log.e(TAG, "malformed JSON object received in udp packet");
+            return;
+        }
+        // only plain beacons can be skipped next time, data updates must always be delivered
+        if (record.beacon && !record.data) {
+            cache.remember(address, fingerprint, buffer);
+        } else {
+            cache.forget(address);
         }
+        OnReceive(address, record);
     }
 
     void shutdown() {
         closed = true;
-        if (udp_socket != null) {
-            udp_socket.close();
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
         }
     }
 
-    private void OnReceive(InetAddress address, JSONObject payload) {
+    private void OnReceive(InetAddress address, BeaconRecord record) {
         if (listener != null) {
-            listener.OnReceive(address, payload);
+            listener.OnReceive(address, record);
         }
     }
 
+    private boolean OnRepeat(InetAddress address) {
+        return listener != null && listener.OnRepeat(address);
+    }
+
     private void OnError() {
         if (listener != null) {
             listener.OnError();
@@ -93,7 +138,10 @@ class UDPReceiver extends Thread {
     }
 
     interface OnEventListener {
-        void OnReceive(InetAddress address, JSONObject payload);
+        // the record is reused for the next packet once this returns
+        void OnReceive(InetAddress address, BeaconRecord record);
+        // returns false if the repeated beacon could not be applied and needs to be parsed
+        boolean OnRepeat(InetAddress address);
         void OnError();
     }
 }
@@ -19,98 +19,112 @@ package com.imaginfire.uconfig.model;
 
 import android.support.annotation.NonNull;
 
-public class Value {
+// an immutable value of a variable. numbers are held as a primitive, every
+// uint8 value has a single shared instance and the text form of a value is
+// only built once.
+public final class Value {
     public enum Type {
-        Byte , Int, String
+        Byte , Int, String, Blob
     }
 
-    private final Integer ui8;
-    private final Integer i;
-    private final String s;
+    private static final Value[] bytes = new Value[256];
+
+    static {
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = new Value(Type.Byte, i, true, Integer.toString(i));
+        }
+    }
 
     public final Type type;
+    // the number for Byte and Int, for String the number it can be decoded as,
+    // for Blob its length. the content of a Blob is only moved by a BlobTransfer.
+    private final long number;
+    private final boolean numeric;
+    // built on first use for numbers, it is the same whichever thread builds it
+    private String text;
 
-    Value(Integer ui8, Integer i, String s) {
-        if (ui8 != null) {
-            type = Type.Byte;
-            this.ui8 = ui8;
-            this.i = null;
-            this.s = null;
-            return;
-        }
-        if (i != null) {
-            type = Type.Int;
-            this.ui8 = null;
-            this.i = i;
-            this.s = null;
-            return;
-        }
-        if (s != null) {
-            type = Type.String;
-            this.ui8 = null;
-            this.i = null;
-            this.s = s;
-            return;
-        }
-        throw new RuntimeException("Uninitialised value");
+    private Value(Type type, long number, boolean numeric, String text) {
+        this.type = type;
+        this.number = number;
+        this.numeric = numeric;
+        this.text = text;
     }
 
-    public Integer getByteValue() {
-        if (type == Type.Byte && ui8 != null) {
-            return ui8;
-        }
-        if (type == Type.Int && i != null) {
-            if (i > 0xFF) {
-                return 0xFF;
-            } else {
-                return i;
-            }
+    @NonNull
+    public static Value ofByte(int b) {
+        if (b < 0 || b > 0xFF) {
+            throw new IllegalArgumentException("Not a valid uint8 value: " + b);
         }
-        if (type == Type.String && s != null) {
+        return bytes[b];
+    }
+
+    @NonNull
+    public static Value ofInt(int i) {
+        return new Value(Type.Int, i, true, null);
+    }
+
+    @NonNull
+    public static Value ofString(@NonNull String s) {
+        // most strings are not numbers, so avoid the exception of a failed decode
+        if (!s.isEmpty() && isNumberStart(s.charAt(0))) {
             try {
-                Integer i = Integer.decode(s);
-                if (i < 0) {
-                    i = 0;
-                }
-                if (i > 0xFF) {
-                    i = 0xFF;
-                }
-                return i;
+                return new Value(Type.String, Integer.decode(s), true, s);
             } catch (NumberFormatException e) {
-                return null;
+                // not a number after all
             }
         }
-        return null;
+        return new Value(Type.String, 0, false, s);
     }
 
-    public Integer getIntegerValue() {
-        if (type == Type.Byte && ui8 != null) {
-            return ui8;
+    @NonNull
+    public static Value ofBlob(long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Not a valid blob length: " + length);
         }
-        if (type == Type.Int && i != null) {
-            return i;
+        return new Value(Type.Blob, length, false, null);
+    }
+
+    private static boolean isNumberStart(char c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '#';
+    }
+
+    // true if getIntegerValue and getByteValue can be used
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    // the value limited to the range of a uint8
+    public int getByteValue() {
+        checkNumeric();
+        return (int) Math.max(0, Math.min(0xFF, number));
+    }
+
+    public int getIntegerValue() {
+        checkNumeric();
+        return (int) number;
+    }
+
+    public long getBlobLength() {
+        if (type != Type.Blob) {
+            throw new IllegalStateException("Value is not a blob: " + getStringValue());
         }
-        if (type == Type.String && s != null) {
-            try {
-                return Integer.decode(s);
-            } catch (NumberFormatException e) {
-                return null;
-            }
+        return number;
+    }
+
+    private void checkNumeric() {
+        if (!numeric) {
+            throw new IllegalStateException("Value is not a number: " + text);
         }
-        return null;
     }
 
+    @NonNull
     public String getStringValue() {
-        if (type == Type.Byte && ui8 != null) {
-            return ui8.toString();
-        }
-        if (type == Type.Int && i != null) {
-            return i.toString();
+        String t = text;
+        if (t == null) {
+            t = type == Type.Blob ? number + " bytes" : Long.toString(number);
+            text = t;
         }
-        if (type == Type.String && s != null) {
-            return s;
-        }
-        return null;
+        return t;
     }
 
     @Override
@@ -120,47 +134,30 @@ public class Value {
 
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
         if (obj instanceof Value) {
             Value v = (Value)obj;
             if (v.type == type) {
-                switch (type) {
-                    case Byte:
-                        if (ui8 != null && v.ui8 != null) {
-                            return ui8.equals(v.ui8);
-                        }
-                        break;
-                    case Int:
-                        if (i != null && v.i != null) {
-                            return i.equals(v.i);
-                        }
-                        break;
-                    case String:
-                        if (s != null && v.s != null) {
-                            return s.equals(v.s);
-                        }
-                        break;
+                if (type == Type.String) {
+                    return text.equals(v.text);
                 }
-             }
+                return number == v.number;
+            }
         }
         return false;
     }
 
-    public static Value parse(Type type, @NonNull String s) throws IllegalArgumentException {
-        switch (type) {
-            case Byte:
-                int i = Integer.decode(s);
-                if (i < 0 || i > 255) {
-                    throw new NumberFormatException("Not a valid uint8 value: " + s);
-                }
-                return new Value(i, null, null);
-            case Int:
-                return new Value(null, Integer.decode(s), null);
-            case String:
-                if (s.equals("")) {
-                    throw new IllegalArgumentException("Empty string is not valid.");
-                }
-                return new Value(null, null, s);
+    @Override
+    public int hashCode() {
+        if (type == Type.String) {
+            return text.hashCode();
         }
-        return null;
+        return type.hashCode() * 31 + Long.hashCode(number);
+    }
+
+    public static Value parse(Type type, @NonNull String s) throws IllegalArgumentException {
+        return ValueCodec.forType(type).parse(s);
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.model;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// the last known value of each variable of a device and when it was learnt.
+// values come from reads, successful writes and broadcasts, a read of a value
+// that is not yet stale is answered from here without contacting the device.
+class ValueCache {
+    // milliseconds after which a cached value is read from the device again
+    static final long DEFAULT_STALE_AFTER = 30000;
+
+    // updated in place, so a steady stream of broadcasts does not allocate
+    private static class Entry {
+        volatile Value value;
+        volatile long updated;
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long stale_after = DEFAULT_STALE_AFTER;
+
+    void setStaleAfter(long ms) {
+        if (ms < 0) {
+            throw new IllegalArgumentException("Stale time must not be negative: " + ms);
+        }
+        stale_after = ms;
+    }
+
+    void put(@NonNull String var, @NonNull Value v) {
+        Entry e = entries.get(var);
+        if (e == null) {
+            e = entries.computeIfAbsent(var, k -> new Entry());
+        }
+        e.updated = SystemClock.elapsedRealtime();
+        e.value = v;
+    }
+
+    // returns null if the value is unknown or stale
+    Value getFresh(@NonNull String var) {
+        Entry e = entries.get(var);
+        if (e == null) {
+            return null;
+        }
+        Value v = e.value;
+        if (v == null || SystemClock.elapsedRealtime() - e.updated >= stale_after) {
+            return null;
+        }
+        return v;
+    }
+
+    // the device may hold any value now
+    void invalidate(@NonNull String var) {
+        Entry e = entries.get(var);
+        if (e != null) {
+            e.value = null;
+        }
+    }
+}
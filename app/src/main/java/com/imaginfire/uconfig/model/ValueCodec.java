@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.model;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+
+// converts the values of one wire type, as named in schemas and beacons,
+// between the forms they arrive in and Value. a codec is looked up once per
+// schema entry or beacon, supporting a new type only needs a codec here.
+abstract class ValueCodec {
+    private static final HashMap<String, ValueCodec> by_name = new HashMap<>();
+    private static final EnumMap<Value.Type, ValueCodec> by_type = new EnumMap<>(Value.Type.class);
+    private static final ArrayList<ValueCodec> codecs = new ArrayList<>();
+
+    static {
+        register(new ByteCodec());
+        register(new IntCodec());
+        register(new StringCodec());
+        register(new BlobCodec());
+    }
+
+    final String wire_name;
+    // the name as it appears in beacons
+    final byte[] wire_bytes;
+    final Value.Type type;
+
+    ValueCodec(@NonNull String wire_name, @NonNull Value.Type type) {
+        this.wire_name = wire_name;
+        this.wire_bytes = wire_name.getBytes(StandardCharsets.US_ASCII);
+        this.type = type;
+    }
+
+    private static void register(ValueCodec c) {
+        by_name.put(c.wire_name, c);
+        by_type.put(c.type, c);
+        codecs.add(c);
+    }
+
+    // returns null for unknown types
+    static ValueCodec forWireName(String name) {
+        return name == null ? null : by_name.get(name);
+    }
+
+    @NonNull
+    static ValueCodec forType(@NonNull Value.Type type) {
+        return by_type.get(type);
+    }
+
+    static List<ValueCodec> all() {
+        return Collections.unmodifiableList(codecs);
+    }
+
+    // a number from a beacon, returns null if it is not valid for the type
+    Value fromNumber(long n) {
+        return null;
+    }
+
+    // a number from a beacon that is not an integer, such as 3.0 or 1e3. as
+    // when beacons were read with JSONObject integral values are taken,
+    // fractions are no longer truncated
+    Value fromDecimal(@NonNull String s) {
+        double d;
+        try {
+            d = Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (Double.isInfinite(d) || d != Math.rint(d)) {
+            return null;
+        }
+        return fromNumber((long) d);
+    }
+
+    // a string from a beacon, returns null if it is not valid for the type
+    Value fromString(@NonNull String s) {
+        return null;
+    }
+
+    // the value of a variable in a get response
+    abstract Value fromJson(@NonNull JSONObject o, @NonNull String name) throws JSONException;
+
+    // a value entered by the user
+    @NonNull
+    abstract Value parse(@NonNull String s) throws IllegalArgumentException;
+
+    // the value as sent to the device
+    @NonNull
+    String encode(@NonNull Value v) {
+        return v.getStringValue();
+    }
+
+    private static class ByteCodec extends ValueCodec {
+        ByteCodec() {
+            super("UINT8", Value.Type.Byte);
+        }
+
+        @Override
+        Value fromNumber(long n) {
+            return n < 0 || n > 0xFF ? null : Value.ofByte((int) n);
+        }
+
+        // some devices send numbers as strings
+        @Override
+        Value fromString(@NonNull String s) {
+            return fromDecimal(s);
+        }
+
+        @Override
+        Value fromJson(@NonNull JSONObject o, @NonNull String name) throws JSONException {
+            return fromNumber(o.getLong(name));
+        }
+
+        @NonNull
+        @Override
+        Value parse(@NonNull String s) throws IllegalArgumentException {
+            Value v = fromNumber(Integer.decode(s));
+            if (v == null) {
+                throw new NumberFormatException("Not a valid uint8 value: " + s);
+            }
+            return v;
+        }
+    }
+
+    private static class IntCodec extends ValueCodec {
+        IntCodec() {
+            super("INT", Value.Type.Int);
+        }
+
+        @Override
+        Value fromNumber(long n) {
+            return n < Integer.MIN_VALUE || n > Integer.MAX_VALUE ? null : Value.ofInt((int) n);
+        }
+
+        // some devices send numbers as strings
+        @Override
+        Value fromString(@NonNull String s) {
+            return fromDecimal(s);
+        }
+
+        @Override
+        Value fromJson(@NonNull JSONObject o, @NonNull String name) throws JSONException {
+            return Value.ofInt(o.getInt(name));
+        }
+
+        @NonNull
+        @Override
+        Value parse(@NonNull String s) throws IllegalArgumentException {
+            return Value.ofInt(Integer.decode(s));
+        }
+    }
+
+    private static class StringCodec extends ValueCodec {
+        StringCodec() {
+            super("STRING", Value.Type.String);
+        }
+
+        @Override
+        Value fromString(@NonNull String s) {
+            return Value.ofString(s);
+        }
+
+        @Override
+        Value fromNumber(long n) {
+            return Value.ofString(Long.toString(n));
+        }
+
+        @Override
+        Value fromDecimal(@NonNull String s) {
+            return Value.ofString(s);
+        }
+
+        @Override
+        Value fromJson(@NonNull JSONObject o, @NonNull String name) throws JSONException {
+            return Value.ofString(o.getString(name));
+        }
+
+        @NonNull
+        @Override
+        Value parse(@NonNull String s) throws IllegalArgumentException {
+            if (s.isEmpty()) {
+                throw new IllegalArgumentException("Empty string is not valid.");
+            }
+            return Value.ofString(s);
+        }
+    }
+
+    // a plain get of a blob returns its length, the content is read in ranges
+    private static class BlobCodec extends ValueCodec {
+        BlobCodec() {
+            super("BLOB", Value.Type.Blob);
+        }
+
+        @Override
+        Value fromNumber(long n) {
+            return n < 0 ? null : Value.ofBlob(n);
+        }
+
+        @Override
+        Value fromJson(@NonNull JSONObject o, @NonNull String name) throws JSONException {
+            return fromNumber(o.getLong(name));
+        }
+
+        @NonNull
+        @Override
+        Value parse(@NonNull String s) throws IllegalArgumentException {
+            throw new IllegalArgumentException("Blobs can not be entered as text.");
+        }
+
+        @NonNull
+        @Override
+        String encode(@NonNull Value v) {
+            throw new IllegalArgumentException("Blobs are written with a BlobTransfer.");
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// sits between variable broadcasts and the ui. devices may broadcast a variable
+// many times a second, only the newest value of each variable is kept and they
+// are all handed to the ui together, at most once per flush interval.
+public final class ValueConflator {
+    // about one display frame
+    private static final long FLUSH_INTERVAL = 16;
+
+    private static final ConcurrentHashMap<Variable, Value> latest = new ConcurrentHashMap<>();
+    private static final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Runnable flush = ValueConflator::flush;
+
+    private static final AtomicLong offered = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+
+    private ValueConflator() {
+    }
+
+    // number of broadcast values received
+    public static long getOffered() {
+        return offered.get();
+    }
+
+    // number of broadcast values replaced by a newer one before reaching the ui
+    public static long getCoalesced() {
+        return coalesced.get();
+    }
+
+    // may be called from any thread
+    static void offer(@NonNull Variable v, @NonNull Value value) {
+        offered.incrementAndGet();
+        if (latest.put(v, value) != null) {
+            coalesced.incrementAndGet();
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            handler.postDelayed(flush, FLUSH_INTERVAL);
+        }
+    }
+
+    // runs on the main thread
+    private static void flush() {
+        // values offered from here on need another flush
+        scheduled.set(false);
+        for (Map.Entry<Variable, Value> e : latest.entrySet()) {
+            Value value = latest.remove(e.getKey());
+            if (value != null) {
+                e.getKey().setNewValue(value);
+            }
+        }
+    }
+}
@@ -19,38 +19,66 @@ package com.imaginfire.uconfig.model;
 
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.imaginfire.uconfig.http.Priority;
 import com.imaginfire.uconfig.http.Request;
 import com.imaginfire.uconfig.http.RequestArguments;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-public class Variable {
+public class Variable implements Device.OnVariableBroadcastListener {
     private final static String TAG = "Variable";
-    private final String name;
-    private final boolean read;
-    private final boolean write;
+    // shared with other devices serving the same schema
+    private final SchemaTemplate.VariableSpec spec;
     private final MutableLiveData<Value> value = new MutableLiveData<>();
     private final MutableLiveData<Boolean> busy = new MutableLiveData<>();
-    private final Value.Type type;
     private final String api;
+    private final ReadBatcher batcher;
+    private final ValueCache cache;
+    private Request<JSONObject> request = null;
+    // guarded by this
+    private final ArrayList<Request<JSONObject>> read_requests = new ArrayList<>(1);
+    // the write in flight, callbacks of any other write are stale and ignored
+    private PendingWrite writing = null;
+    private PendingWrite next_write = null;
 
-    Variable(String a, String n, Value.Type t, boolean r, boolean w) {
+    static class PendingWrite {
+        final Value value;
+        final OnAction ok;
+        final OnAction fail;
+        final OnAction superseded;
+
+        PendingWrite(Value value, OnAction ok, OnAction fail, OnAction superseded) {
+            this.value = value;
+            this.ok = ok;
+            this.fail = fail;
+            this.superseded = superseded;
+        }
+    }
+
+    Variable(String a, SchemaTemplate.VariableSpec s, ReadBatcher b, ValueCache c) {
         api = a;
-        name = n;
-        read = r;
-        write = w;
-        type = t;
-        busy.setValue(false);
+        spec = s;
+        batcher = b;
+        cache = c;
+        // schemas are decoded off the main thread
+        busy.postValue(false);
     }
 
     public String getName() {
-        return name;
+        return spec.name;
     }
 
     public LiveData<Value> getValue() {
@@ -62,136 +90,312 @@ public class Variable {
     }
 
     public boolean isReadable() {
-        return read;
+        return spec.read;
     }
 
     public boolean isWritable() {
-        return write;
+        return spec.write;
     }
 
-    void publishNewValue(Value v) {
-        if (v.type == type || !isReadable()) {
-            value.postValue(v);
+    // the newest broadcast value, called on the main thread by the ValueConflator
+    void setNewValue(Value v) {
+        if (v.type == spec.type || !isReadable()) {
+            value.setValue(v);
             return;
         }
         throw new RuntimeException("Attempt to publish variable of wrong type or access.");
     }
 
-    public Value.Type getType() {
-        return type;
+    // called on the receiver thread, broadcasts are conflated before reaching the ui
+    @Override
+    public void onVariableBroadcast(String var, Value v) {
+        if (v.type == spec.type) {
+            ValueConflator.offer(this, v);
+        } else {
+            Log.w(TAG, "Variable broadcast with wrong type received for: " + var);
+        }
     }
 
-    public void startRead(OnAction fail) {
-        startRead(false, fail);
+    public Value.Type getType() {
+        return spec.type;
     }
 
-    private void startRead(boolean ignorebusy, OnAction fail) {
+    // values that are not stale are taken from the cache of the device. a read
+    // made while another is in progress shares its result instead of being dropped
+    public void startRead(OnAction fail) {
         if (!isReadable()) {
             value.postValue(null);
         }
-        if (busy.getValue() == null || !busy.getValue() || ignorebusy) {
-            busy.postValue(true);
-            Map<String, String> params = Collections.singletonMap("var", name);
-            new Request().execute(
+        Value cached = cache.getFresh(spec.name);
+        if (cached != null && cached.type == spec.type) {
+            value.postValue(cached);
+            return;
+        }
+        busy.postValue(true);
+        batcher.read(this, fail);
+    }
+
+    // reads only this variable, used when reads can not be batched. every
+    // read in progress is kept so that all of them can be cancelled
+    void readSingle(List<OnAction> fails) {
+        Map<String, String> params = Collections.singletonMap("var", spec.name);
+        @SuppressWarnings("unchecked")
+        Request<JSONObject>[] r = new Request[1];
+        synchronized (this) {
+            r[0] = Request.submit(
                     new RequestArguments(
                             params,
                             api + "get",
                             v -> {
-                                if (v == null) {
-                                    busy.postValue(false);
-                                    if (fail != null) {
-                                        fail.onAction();
-                                    }
-                                    return;
+                                synchronized (Variable.this) {
+                                    read_requests.remove(r[0]);
                                 }
-                                try {
-                                    switch (type) {
-                                        case Int:
-                                            value.postValue(new Value(null, v.getInt(name), null));
-                                            break;
-                                        case Byte:
-                                            int i = v.getInt(name);
-                                            if (i >= 0 && i <= 255) {
-                                                value.postValue(new Value(v.getInt(name), null, null));
-                                            } else {
-                                                Log.e(TAG, "uint8 value read out of bounds: " + name + "=" + i);
-                                                value.postValue(null);
-                                            }
-                                            break;
-                                        case String:
-                                            value.postValue(new Value(null, null, v.getString(name)));
-                                            break;
-                                    }
-                                } catch (JSONException e) {
-                                    Log.e(TAG, "Unable to read variable value from json response.", e);
-                                    value.postValue(null);
-                                    if (fail != null) {
-                                        fail.onAction();
-                                    }
-                                }
-                                busy.postValue(false);
+                                onReadResponse(v, fails);
                             }));
-        } else {
-            Log.w(TAG, "Ignoring read variable request as busy.");
+            if (!r[0].isDone()) {
+                read_requests.add(r[0]);
+            }
+        }
+    }
+
+    void onReadResponse(JSONObject v, List<OnAction> fails) {
+        if (v == null) {
+            busy.postValue(false);
+            failed(fails);
+            return;
+        }
+        try {
+            Value read = spec.codec.fromJson(v, spec.name);
+            if (read == null) {
+                Log.e(TAG, "Value read out of range: " + spec.name + "=" + v.opt(spec.name));
+                cache.invalidate(spec.name);
+            } else {
+                cache.put(spec.name, read);
+            }
+            value.postValue(read);
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to read variable value from json response.", e);
+            value.postValue(null);
+            failed(fails);
+        }
+        busy.postValue(false);
+    }
+
+    private static void failed(List<OnAction> fails) {
+        for (OnAction fail : fails) {
+            fail.onAction();
         }
     }
 
     public boolean startWrite(Value v, OnAction ok, OnAction fail) {
+        return startWrite(v, ok, fail, null);
+    }
+
+    // only one write is sent at a time. a write made while another is in progress
+    // waits for it to complete, if further writes are made before then only the
+    // latest is sent and the callers it replaced are told through superseded
+    public boolean startWrite(Value v, OnAction ok, OnAction fail, OnAction superseded) {
+        if (!canWrite(v)) {
+            return false;
+        }
+        PendingWrite w = new PendingWrite(v, ok, fail, superseded);
+        PendingWrite replaced = null;
+        synchronized (this) {
+            if (writing != null) {
+                replaced = next_write;
+                next_write = w;
+                w = null;
+            } else {
+                writing = w;
+            }
+        }
+        if (replaced != null) {
+            Log.d(TAG, "Write of " + spec.name + "=" + replaced.value + " superseded");
+            if (replaced.superseded != null) {
+                replaced.superseded.onAction();
+            }
+        }
+        if (w != null) {
+            busy.postValue(true);
+            sendWrite(w);
+        }
+        return true;
+    }
+
+    // makes a write of v the write in flight without sending it, so that it can
+    // be sent as part of a batch. null if another write is in progress, then
+    // the value should be written with startWrite to wait for it
+    PendingWrite claimWrite(Value v, OnAction ok, OnAction fail) {
+        if (!canWrite(v)) {
+            return null;
+        }
+        PendingWrite w = new PendingWrite(v, ok, fail, null);
+        synchronized (this) {
+            if (writing != null) {
+                return null;
+            }
+            writing = w;
+        }
+        busy.postValue(true);
+        return w;
+    }
+
+    boolean canWrite(Value v) {
         if (!isWritable()) {
             Log.w(TAG, "Attempt to write not writable variable ignored.");
             return false;
         }
-        if (v == null || !type.equals(v.type)) {
+        if (v == null || !spec.type.equals(v.type)) {
             Log.w(TAG, "Attempt to write value of wrong type ignored.");
             return false;
         }
-        if (busy.getValue() == null || !busy.getValue()) {
-            busy.postValue(true);
-            HashMap<String, String> params = new HashMap<>();
-            params.put("var", name);
-            params.put("val", v.toString());
-            new Request().execute(new RequestArguments(
-                    params,
-                    api + "set",
-                    obj -> {
-                        if (obj == null) {
-                            Log.d(TAG, "failed to write value");
-                            busy.postValue(false);
-                            if (fail != null) {
-                                fail.onAction();
-                            }
-                            return;
-                        }
-                        String result;
-                        try {
-                            result = obj.getString("result");
-                        } catch (JSONException e) {
-                            Log.e(TAG, "Unable to read variable value from json response.");
-                            if (fail != null) {
-                                fail.onAction();
-                            }
-                            return;
-                        } finally {
-                            busy.postValue(false);
-                        }
-                        if (result.equals("ok")) {
-                            if (ok != null) {
-                                ok.onAction();
-                            }
-                            if (isReadable()) {
-                                // necessary to set ignorebusy as the posted value of WriteOk will
-                                // be processed by main thread so might not be visible in startRead.
-                                startRead(true, null);
-                            }
-                        } else {
-                            Log.e(TAG, "Error returned from server while writing variable:" + result);
-                            if (fail != null) {
-                                fail.onAction();
-                            }
-                        }
-                    }
-            ));
+        if (spec.type == Value.Type.Blob) {
+            Log.w(TAG, "Attempt to write blob as a value ignored, use upload.");
+            return false;
         }
         return true;
     }
+
+    // w must be the write in flight
+    void sendWrite(PendingWrite w) {
+        HashMap<String, String> params = new HashMap<>();
+        params.put("var", spec.name);
+        params.put("val", spec.codec.encode(w.value));
+        request = Request.submit(new RequestArguments(
+                params,
+                api + "set",
+                Priority.INTERACTIVE,
+                obj -> onWritten(w, obj)
+        ));
+    }
+
+    private void onWritten(PendingWrite w, JSONObject obj) {
+        boolean ok = false;
+        if (obj == null) {
+            Log.d(TAG, "failed to write value");
+        } else {
+            try {
+                String result = obj.getString("result");
+                ok = result.equals("ok");
+                if (!ok) {
+                    Log.e(TAG, "Error returned from server while writing variable:" + result);
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Unable to read variable value from json response.");
+            }
+        }
+        completeWrite(w, ok);
+    }
+
+    // reports the outcome of w and sends the write waiting behind it. ignored if
+    // w is no longer the write in flight, e.g. its callback was already queued
+    // when the variable was cancelled
+    void completeWrite(PendingWrite w, boolean ok) {
+        PendingWrite next;
+        synchronized (this) {
+            if (writing != w) {
+                Log.d(TAG, "Ignoring result of stale write of " + spec.name);
+                return;
+            }
+            next = next_write;
+            next_write = null;
+            writing = next;
+        }
+        if (ok) {
+            if (w.ok != null) {
+                w.ok.onAction();
+            }
+            onWriteAccepted(w.value);
+        } else {
+            onWriteFailed();
+            if (w.fail != null) {
+                w.fail.onAction();
+            }
+        }
+        if (next != null) {
+            sendWrite(next);
+        } else {
+            busy.postValue(false);
+        }
+    }
+
+    // the device holds the written value, no need to read it back
+    private void onWriteAccepted(Value v) {
+        if (isReadable()) {
+            cache.put(spec.name, v);
+            value.postValue(v);
+        }
+    }
+
+    // it is not known if the device took the value
+    private void onWriteFailed() {
+        cache.invalidate(spec.name);
+    }
+
+    String getApi() {
+        return api;
+    }
+
+    String encode(Value v) {
+        return spec.codec.encode(v);
+    }
+
+    // reads the content of a blob variable into out, offset is the number of bytes
+    // already received when resuming an earlier download
+    @NonNull
+    public BlobTransfer download(@NonNull WritableByteChannel out, long offset, @Nullable BlobTransfer.Listener l) {
+        if (spec.type != Value.Type.Blob || !isReadable()) {
+            throw new IllegalStateException("Not a readable blob: " + spec.name);
+        }
+        Value length = value.getValue();
+        BlobTransfer t = BlobTransfer.download(api, spec.name, offset,
+                length == null ? -1 : length.getBlobLength(), out, l);
+        t.resume();
+        return t;
+    }
+
+    // writes the content of in to a blob variable, starting at offset
+    @NonNull
+    public BlobTransfer upload(@NonNull ReadableByteChannel in, long offset, @Nullable BlobTransfer.Listener l) {
+        if (spec.type != Value.Type.Blob || !isWritable()) {
+            throw new IllegalStateException("Not a writable blob: " + spec.name);
+        }
+        // the length of the blob is about to change
+        cache.invalidate(spec.name);
+        BlobTransfer t = BlobTransfer.upload(api, spec.name, offset, in, l);
+        t.resume();
+        return t;
+    }
+
+    // abandon the request that is in progress, no callbacks will be made for it
+    void cancel() {
+        synchronized (this) {
+            writing = null;
+            next_write = null;
+        }
+        Request<JSONObject> r = request;
+        if (r != null && r.cancel(true)) {
+            busy.postValue(false);
+        }
+        cancelRead();
+    }
+
+    // abandon reads that are waiting to be sent or in progress on their own, a
+    // read that is part of a batch already sent completes as normal
+    public void cancelRead() {
+        boolean cancelled = batcher.remove(this);
+        ArrayList<Request<JSONObject>> reads;
+        synchronized (this) {
+            reads = new ArrayList<>(read_requests);
+            read_requests.clear();
+        }
+        for (Request<JSONObject> r : reads) {
+            if (r.cancel(true)) {
+                cancelled = true;
+            }
+        }
+        if (cancelled) {
+            busy.postValue(false);
+        }
+    }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.imaginfire.uconfig.model;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// subscribers to the variable broadcasts of a device, by variable name.
+// broadcasts arrive on the receiver thread while the ui subscribes and
+// unsubscribes, so publishing only takes a snapshot of the subscribers of
+// the one variable and never holds a lock.
+class VariableSubscriptions {
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Device.OnVariableBroadcastListener>> topics =
+            new ConcurrentHashMap<>();
+
+    void subscribe(@NonNull String var, @NonNull Device.OnVariableBroadcastListener l) {
+        topics.compute(var, (k, list) -> {
+            if (list == null) {
+                list = new CopyOnWriteArrayList<>();
+            }
+            list.addIfAbsent(l);
+            return list;
+        });
+    }
+
+    void unsubscribe(@NonNull String var, @NonNull Device.OnVariableBroadcastListener l) {
+        // drop the topic with its last subscriber
+        topics.computeIfPresent(var, (k, list) -> {
+            list.remove(l);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    // returns false if nothing is subscribed to the variable
+    boolean publish(@NonNull String var, @NonNull Value value) {
+        List<Device.OnVariableBroadcastListener> list = topics.get(var);
+        if (list == null) {
+            return false;
+        }
+        for (Device.OnVariableBroadcastListener l : list) {
+            l.onVariableBroadcast(var, value);
+        }
+        return true;
+    }
+}
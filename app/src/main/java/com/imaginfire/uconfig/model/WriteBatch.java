@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.model;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.imaginfire.uconfig.http.Priority;
+import com.imaginfire.uconfig.http.Request;
+import com.imaginfire.uconfig.http.RequestArguments;
+
+import org.json.JSONObject;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// writes several variables of a device in a single set?var=a&val=1&var=b&val=2
+// request, the device answers with the result of each variable. devices that do
+// not answer with a result per variable have each variable written on its own,
+// these writes are queued together so they are sent back to back, and are
+// pipelined when pipelining is enabled. a variable that is already being
+// written is written on its own once that write completes.
+public final class WriteBatch {
+    private static final String TAG = "WriteBatch";
+    // devices may gain support for batches with a firmware update
+    private static final long UNSUPPORTED_RETRY_MS = 10 * 60 * 1000;
+    // apis of devices that have answered a batch without per variable results,
+    // with the time they did so
+    private static final Map<String, Long> unsupported = new ConcurrentHashMap<>();
+
+    private final LinkedHashMap<Variable, Value> writes = new LinkedHashMap<>();
+    // in the order the variables were added
+    private final LinkedHashMap<Variable, Boolean> results = new LinkedHashMap<>();
+    private String api = null;
+    private boolean committed = false;
+    private int remaining;
+    private OnBatchWritten cb;
+
+    public interface OnBatchWritten {
+        // true for each variable the device accepted, run on the main thread
+        void onBatchWritten(@NonNull Map<Variable, Boolean> results);
+    }
+
+    // false if the value can not be written, or the variable belongs to a
+    // different device than those already added. a later value for a variable
+    // replaces an earlier one.
+    public boolean add(@NonNull Variable v, @NonNull Value value) {
+        if (committed) {
+            throw new IllegalStateException("Batch already committed.");
+        }
+        if (!v.canWrite(value)) {
+            return false;
+        }
+        if (api == null) {
+            api = v.getApi();
+        } else if (!api.equals(v.getApi())) {
+            Log.w(TAG, "Attempt to batch variables of different devices ignored.");
+            return false;
+        }
+        writes.put(v, value);
+        return true;
+    }
+
+    public void commit(@NonNull OnBatchWritten cb) {
+        if (committed) {
+            throw new IllegalStateException("Batch already committed.");
+        }
+        committed = true;
+        if (writes.isEmpty()) {
+            cb.onBatchWritten(Collections.emptyMap());
+            return;
+        }
+        this.cb = cb;
+        remaining = writes.size();
+        for (Variable v : writes.keySet()) {
+            results.put(v, false);
+        }
+
+        // the variables are claimed so that they show as busy, and single
+        // writes made before the batch completes wait for it
+        LinkedHashMap<Variable, Variable.PendingWrite> claimed = new LinkedHashMap<>();
+        for (Map.Entry<Variable, Value> e : writes.entrySet()) {
+            Variable v = e.getKey();
+            Variable.PendingWrite w = v.claimWrite(e.getValue(),
+                    () -> onWritten(v, true),
+                    () -> onWritten(v, false));
+            if (w != null) {
+                claimed.put(v, w);
+            } else if (!v.startWrite(e.getValue(),
+                    () -> onWritten(v, true),
+                    () -> onWritten(v, false),
+                    () -> onWritten(v, false))) {
+                onWritten(v, false);
+            }
+        }
+        if (claimed.size() < 2 || isUnsupported()) {
+            sendEach(claimed);
+            return;
+        }
+
+        ArrayList<Map.Entry<String, String>> params = new ArrayList<>(claimed.size() * 2);
+        for (Map.Entry<Variable, Variable.PendingWrite> e : claimed.entrySet()) {
+            Variable v = e.getKey();
+            params.add(new AbstractMap.SimpleImmutableEntry<>("var", v.getName()));
+            params.add(new AbstractMap.SimpleImmutableEntry<>("val", v.encode(e.getValue().value)));
+        }
+        Request.submit(new RequestArguments(params, api + "set", Priority.INTERACTIVE, obj -> {
+            if (obj == null) {
+                // nothing is known about which values the device took, and a set
+                // is not safe to repeat, so every write is reported as failed
+                Log.e(TAG, "Batched write to " + api + " failed");
+                for (Map.Entry<Variable, Variable.PendingWrite> e : claimed.entrySet()) {
+                    e.getKey().completeWrite(e.getValue(), false);
+                }
+                return;
+            }
+            if (!hasResults(obj, claimed.keySet())) {
+                // the device may have taken some of the values, so write all of them
+                Log.i(TAG, "Batched writes not supported by " + api + ", writing variables individually");
+                unsupported.put(api, SystemClock.elapsedRealtime());
+                sendEach(claimed);
+                return;
+            }
+            for (Map.Entry<Variable, Variable.PendingWrite> e : claimed.entrySet()) {
+                Variable v = e.getKey();
+                String result = obj.optString(v.getName(), null);
+                boolean ok = "ok".equals(result);
+                if (!ok) {
+                    Log.e(TAG, "Error returned from server while writing " + v.getName() + ": " + result);
+                }
+                v.completeWrite(e.getValue(), ok);
+            }
+        }));
+    }
+
+    private boolean isUnsupported() {
+        Long since = unsupported.get(api);
+        if (since == null) {
+            return false;
+        }
+        if (SystemClock.elapsedRealtime() - since >= UNSUPPORTED_RETRY_MS) {
+            unsupported.remove(api, since);
+            return false;
+        }
+        return true;
+    }
+
+    // a device that supports batches names every variable in its response
+    private static boolean hasResults(@NonNull JSONObject obj, @NonNull Collection<Variable> vars) {
+        for (Variable v : vars) {
+            if (!obj.has(v.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the writes are submitted together, so the device queue sends them back to back
+    private static void sendEach(Map<Variable, Variable.PendingWrite> claimed) {
+        for (Map.Entry<Variable, Variable.PendingWrite> e : claimed.entrySet()) {
+            e.getKey().sendWrite(e.getValue());
+        }
+    }
+
+    private void onWritten(Variable v, boolean ok) {
+        results.put(v, ok);
+        if (--remaining == 0) {
+            cb.onBatchWritten(results);
+        }
+    }
+}
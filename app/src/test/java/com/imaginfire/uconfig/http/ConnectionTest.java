@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// runs Connection against a local server that answers each request with the next
+// canned response, so the status, header and body parsing is exercised as it is
+// on a device. the server reads a request only after answering the one before,
+// as an embedded server would, so pipelined requests wait in the socket.
+public class ConnectionTest {
+    private static final String CLOSE = "<close>";
+    // replaced by the path of the request being answered
+    private static final String PATH = "<path>";
+
+    private ServerSocket server;
+    private Thread server_thread;
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private Connection connection;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        server_thread = new Thread(this::serve);
+        server_thread.setDaemon(true);
+        server_thread.start();
+        connection = Connection.forUrl(new URL("http://127.0.0.1:" + server.getLocalPort() + "/"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Connection.close(new URL("http://127.0.0.1:" + server.getLocalPort() + "/"));
+        server.close();
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            try {
+                Socket s = server.accept();
+                accepted.incrementAndGet();
+                Thread t = new Thread(() -> answer(s));
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void answer(Socket s) {
+        try (Socket socket = s) {
+            BufferedReader r = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String line = r.readLine();
+                if (line == null) {
+                    return;
+                }
+                String[] request = line.split(" ");
+                while (!line.isEmpty()) {
+                    line = r.readLine();
+                }
+                String response = responses.poll(5, TimeUnit.SECONDS);
+                if (response == null) {
+                    return;
+                }
+                boolean close = response.endsWith(CLOSE);
+                if (close) {
+                    response = response.substring(0, response.length() - CLOSE.length());
+                }
+                response = response.replace(PATH, request[1]);
+                out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                if (close) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // the test is over
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        byte[] buf = new byte[64];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) != -1) {
+            b.write(buf, 0, n);
+        }
+        return new String(b.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private String get() throws IOException {
+        return connection.exchange("/", 1000, 1000,
+                (code, type, body) -> code + " " + type + " " + readAll(body));
+    }
+
+    @Test
+    public void fixedLengthBody() throws IOException {
+        responses.add("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+                + "Content-Length: 9\r\n\r\n{\"a\": 1}\n");
+        assertEquals("200 application/json {\"a\": 1}\n", get());
+    }
+
+    @Test
+    public void onlyIdempotentRequestsAreTimed() throws IOException {
+        String ok = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n";
+        responses.add(ok);
+        responses.add(ok);
+        connection.exchange("/set", false, null, (code, type, body) -> null);
+        assertEquals(0, connection.getRtt().getSamples());
+        connection.exchange("/get", true, null, (code, type, body) -> null);
+        assertEquals(1, connection.getRtt().getSamples());
+    }
+
+    @Test
+    public void headerNamesIgnoreCase() throws IOException {
+        responses.add("HTTP/1.1 404 Not Found\r\ncontent-type:text/plain\r\n"
+                + "CONTENT-LENGTH:  3 \r\nX-Other: ignored\r\n\r\nnah");
+        assertEquals("404 text/plain nah", get());
+    }
+
+    @Test
+    public void chunkedBody() throws IOException {
+        responses.add("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "4\r\n{\"a\"\r\n"
+                + "6;ext=1\r\n: 12}\n\r\n"
+                + "0\r\nTrailer: x\r\n\r\n");
+        assertEquals("200 null {\"a\": 12}\n", get());
+    }
+
+    @Test
+    public void bodyUntilClose() throws IOException {
+        responses.add("HTTP/1.0 200 OK\r\n\r\nuntil the end" + CLOSE);
+        assertEquals("200 null until the end", get());
+    }
+
+    @Test
+    public void keepAliveReusesSocket() throws IOException {
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na");
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb");
+        assertEquals("200 null a", get());
+        assertEquals("200 null b", get());
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void unreadBodyIsDrained() throws IOException {
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nfirst");
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\nsecond");
+        assertNull(connection.exchange("/", 1000, 1000, (code, type, body) -> null));
+        assertEquals("200 null second", get());
+    }
+
+    @Test
+    public void connectionCloseReopens() throws IOException {
+        responses.add("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 1\r\n\r\na" + CLOSE);
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb");
+        assertEquals("200 null a", get());
+        assertEquals("200 null b", get());
+        assertEquals(2, accepted.get());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void invalidStatusLine() throws IOException {
+        responses.add("HTTP/1.1 abc OK\r\n\r\n" + CLOSE);
+        get();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void invalidContentLength() throws IOException {
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: many\r\n\r\n" + CLOSE);
+        get();
+    }
+
+    @Test
+    public void handlerExceptionDoesNotBlockLaterExchanges() throws IOException {
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na");
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb");
+        try {
+            connection.exchange("/", 1000, 1000, (code, type, body) -> {
+                throw new IllegalArgumentException("decoder failed");
+            });
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals("200 null b", get());
+    }
+
+    @Test
+    public void abortedExchangeIsNotSent() throws IOException {
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na");
+        try {
+            connection.exchange("/set", false, () -> true, (code, type, body) -> code);
+            fail("exception expected");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        // the response was not taken by the aborted exchange
+        assertEquals("200 null a", get());
+    }
+
+    @Test
+    public void abortDoesNotWaitForConnect() throws Exception {
+        // fill the backlog of a server that never accepts, so a connect stalls
+        ServerSocket stalled = new ServerSocket(0, 1);
+        ArrayList<Socket> backlog = new ArrayList<>();
+        URL url = new URL("http://127.0.0.1:" + stalled.getLocalPort() + "/");
+        try {
+            for (int i = 0; i < 8; i++) {
+                Socket s = new Socket();
+                try {
+                    s.connect(new InetSocketAddress("127.0.0.1", stalled.getLocalPort()), 200);
+                } catch (IOException e) {
+                    s.close();
+                    break;
+                }
+                backlog.add(s);
+            }
+            Connection c = Connection.forUrl(url);
+            BlockingQueue<Exception> failed = new LinkedBlockingQueue<>();
+            Thread t = new Thread(() -> {
+                try {
+                    c.exchange("/", 5000, 5000, (code, type, body) -> code);
+                } catch (IOException e) {
+                    failed.add(e);
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            Thread.sleep(200);
+            long start = System.nanoTime();
+            c.abort();
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+            assertNotNull(failed.poll(1, TimeUnit.SECONDS));
+        } finally {
+            Connection.close(url);
+            for (Socket s : backlog) {
+                s.close();
+            }
+            stalled.close();
+        }
+    }
+
+    // starts an exchange for each path on its own thread, as concurrent requests
+    // of the HostLimiter would, and returns the results by path
+    private Map<String, Object> exchangeConcurrently(String... paths) throws InterruptedException {
+        ConcurrentHashMap<String, Object> results = new ConcurrentHashMap<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (String path : paths) {
+            Thread t = new Thread(() -> {
+                try {
+                    results.put(path, connection.exchange(path, 1000, 1000,
+                            (code, type, body) -> readAll(body)));
+                } catch (IOException e) {
+                    results.put(path, e);
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        // give every request time to be written before any is answered
+        Thread.sleep(200);
+        return results;
+    }
+
+    @Test
+    public void pipelinedResponsesReachTheirRequests() throws Exception {
+        connection.setPipelineDepth(3);
+        Map<String, Object> results = exchangeConcurrently("/1", "/2", "/3");
+        for (int i = 0; i < 3; i++) {
+            responses.add("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n" + PATH);
+        }
+        waitFor(results, 3);
+        assertEquals("/1", results.get("/1"));
+        assertEquals("/2", results.get("/2"));
+        assertEquals("/3", results.get("/3"));
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void pipelinedRequestIsResentAfterClose() throws Exception {
+        connection.setPipelineDepth(2);
+        Map<String, Object> results = exchangeConcurrently("/1", "/2");
+        // the request behind the one answered was never processed by the device
+        responses.add("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 2\r\n\r\n" + PATH + CLOSE);
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n" + PATH);
+        waitFor(results, 2);
+        assertEquals("/1", results.get("/1"));
+        assertEquals("/2", results.get("/2"));
+        assertEquals(2, accepted.get());
+    }
+
+    private static void waitFor(Map<String, Object> results, int count) throws InterruptedException {
+        for (int i = 0; i < 50 && results.size() < count; i++) {
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RttEstimatorTest {
+    @Test
+    public void initialTimeouts() {
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(3000, rtt.getConnectTimeout());
+        assertEquals(2000, rtt.getReadTimeout());
+        assertEquals(2000, rtt.getCommandTimeout());
+    }
+
+    @Test
+    public void fastDeviceKeepsCommandFloor() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(10);
+        assertEquals(250, rtt.getReadTimeout());
+        assertEquals(2000, rtt.getCommandTimeout());
+    }
+
+    @Test
+    public void slowDeviceRaisesCommandTimeout() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(1000);
+        // srtt + 4 * rttvar, the first sample sets rttvar to half the rtt
+        assertEquals(3000, rtt.getReadTimeout());
+        assertEquals(3000, rtt.getCommandTimeout());
+    }
+
+    @Test
+    public void timeoutsBackOffUpToLimit() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(100);
+        assertEquals(300, rtt.getReadTimeout());
+        rtt.timedOut();
+        assertEquals(600, rtt.getReadTimeout());
+        for (int i = 0; i < 10; i++) {
+            rtt.timedOut();
+        }
+        assertEquals(4800, rtt.getReadTimeout());
+        assertEquals(4800, rtt.getCommandTimeout());
+        rtt.sample(100);
+        assertEquals(2000, rtt.getCommandTimeout());
+    }
+}
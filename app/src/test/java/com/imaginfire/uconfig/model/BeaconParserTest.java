@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2018 Karim Kanso. All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.imaginfire.uconfig.model;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BeaconParserTest {
+    private final BeaconParser parser = new BeaconParser(1472);
+    private final BeaconRecord record = new BeaconRecord();
+
+    private boolean parse(String json) {
+        ByteBuffer b = ByteBuffer.allocateDirect(1472);
+        b.put(json.getBytes(StandardCharsets.UTF_8));
+        b.flip();
+        boolean ok = parser.parse(b, record);
+        // the buffer is read in place
+        assertEquals(0, b.position());
+        return ok;
+    }
+
+    // the value of a data beacon as DeviceViewModel converts it
+    private Value data(String value, String type) {
+        assertTrue(parse("{\"data\": {\"name\": \"v\", \"type\": \"" + type + "\", \"value\": " + value + "}}"));
+        assertTrue(record.isValidData());
+        if (record.value_kind == BeaconRecord.Kind.Number) {
+            return record.data_codec.fromNumber(record.number_value);
+        } else if (record.value_kind == BeaconRecord.Kind.Decimal) {
+            return record.data_codec.fromDecimal(record.string_value);
+        }
+        return record.data_codec.fromString(record.string_value);
+    }
+
+    @Test
+    public void beacon() {
+        assertTrue(parse("{\"beacon\": {\"api\": \"/uconf/\", \"name\": \"Lamp\", \"id\": \"a1\"}}"));
+        assertTrue(record.isValidBeacon());
+        assertFalse(record.data);
+        assertEquals("/uconf/", record.api);
+        assertEquals("Lamp", record.name);
+        assertEquals("a1", record.id);
+    }
+
+    @Test
+    public void repeatedStringsAreInterned() {
+        assertTrue(parse("{\"beacon\": {\"api\": \"/uconf/\", \"name\": \"Lamp\", \"id\": \"a1\"}}"));
+        String name = record.name;
+        assertTrue(parse("{\"beacon\": {\"id\": \"a1\", \"name\": \"Lamp\", \"api\": \"/uconf/\"}}"));
+        assertSame(name, record.name);
+    }
+
+    @Test
+    public void escapes() {
+        assertTrue(parse("{\"beacon\": {\"api\": \"\\/u\\\\c\\\"\", \"name\": \"a\\tb\\nc\\r\\b\\f\", \"id\": \"\\u0041\\u00e9\\u20AC\"}}"));
+        assertEquals("/u\\c\"", record.api);
+        assertEquals("a\tb\nc\r\b\f", record.name);
+        assertEquals("A\u00e9\u20ac", record.id);
+    }
+
+    @Test
+    public void surrogatePairs() {
+        assertTrue(parse("{\"beacon\": {\"api\": \"\\ud83d\\ude00\", \"name\": \"\ud83d\ude00\", \"id\": \"\\ud83dx\\ude00\"}}"));
+        assertEquals("\ud83d\ude00", record.api);
+        assertEquals("\ud83d\ude00", record.name);
+        // lone surrogates can not be encoded in utf-8
+        assertEquals("\ufffdx\ufffd", record.id);
+    }
+
+    @Test
+    public void invalidEscapes() {
+        assertFalse(parse("{\"beacon\": {\"api\": \"\\x\"}}"));
+        assertFalse(parse("{\"beacon\": {\"api\": \"\\u00g0\"}}"));
+        assertFalse(parse("{\"beacon\": {\"api\": \"a\nb\"}}"));
+    }
+
+    @Test
+    public void unknownMembersAreSkipped() {
+        assertTrue(parse("{\"version\": 2, \"beacon\": {\"api\": \"/uconf/\","
+                + " \"extra\": {\"a\": [1, -2.5e3, true, false, null, \"\\\"}\", {}], \"b\": []},"
+                + " \"name\": \"Lamp\", \"id\": \"a1\"}, \"more\": [[{\"beacon\": 1}]]}"));
+        assertTrue(record.isValidBeacon());
+        assertEquals("a1", record.id);
+    }
+
+    @Test
+    public void wrongMemberTypes() {
+        assertTrue(parse("{\"beacon\": {\"api\": 1, \"name\": \"Lamp\", \"id\": \"a1\"}}"));
+        assertFalse(record.isValidBeacon());
+        assertTrue(parse("{\"beacon\": [1], \"data\": \"x\"}"));
+        assertFalse(record.beacon);
+        assertFalse(record.data);
+    }
+
+    @Test
+    public void nestingIsLimited() {
+        StringBuilder b = new StringBuilder("{\"a\": ");
+        for (int i = 0; i < 100; i++) {
+            b.append('[');
+        }
+        for (int i = 0; i < 100; i++) {
+            b.append(']');
+        }
+        assertFalse(parse(b.append('}').toString()));
+    }
+
+    @Test
+    public void truncated() {
+        String full = "{\"beacon\": {\"api\": \"/uconf/\", \"name\": \"L\\u00e9mp\", \"id\": \"a1\"},"
+                + " \"data\": {\"name\": \"v\", \"type\": \"INT\", \"value\": -12}}";
+        for (int i = 0; i < full.length(); i++) {
+            assertFalse(full.substring(0, i), parse(full.substring(0, i)));
+        }
+        assertTrue(parse(full));
+    }
+
+    @Test
+    public void notAnObject() {
+        assertFalse(parse(""));
+        assertFalse(parse("[]"));
+        assertFalse(parse("\"beacon\""));
+        assertFalse(parse("{\"beacon\" {}}"));
+        assertFalse(parse("{\"beacon\": {},}"));
+    }
+
+    @Test
+    public void numbers() {
+        assertEquals(Value.ofInt(-12), data("-12", "INT"));
+        assertEquals(Value.ofInt(Integer.MAX_VALUE), data("2147483647", "INT"));
+        assertNull(data("2147483648", "INT"));
+        assertEquals(Value.ofByte(255), data("255", "UINT8"));
+        assertNull(data("256", "UINT8"));
+        assertNull(data("-1", "UINT8"));
+    }
+
+    @Test
+    public void numericOverflow() {
+        assertNull(data("99999999999999999999", "INT"));
+        assertEquals(BeaconRecord.Kind.Decimal, record.value_kind);
+        assertNull(data("-99999999999999999999", "INT"));
+        assertNull(data("1e400", "INT"));
+    }
+
+    @Test
+    public void integralNumbersAreCoerced() {
+        assertEquals(Value.ofByte(3), data("3.0", "UINT8"));
+        assertEquals(Value.ofInt(1000), data("1e3", "INT"));
+        assertEquals(Value.ofInt(42), data("\"42\"", "INT"));
+        assertEquals(Value.ofByte(7), data("\"7\"", "UINT8"));
+        assertEquals(Value.ofString("42"), data("42", "STRING"));
+        assertEquals(Value.ofString("2.5"), data("2.5", "STRING"));
+    }
+
+    @Test
+    public void fractionsAreNotTruncated() {
+        assertNull(data("3.5", "UINT8"));
+        assertNull(data("\"-0.1\"", "INT"));
+        assertNull(data("\"forty\"", "INT"));
+    }
+
+    @Test
+    public void invalidValues() {
+        assertTrue(parse("{\"data\": {\"name\": \"v\", \"type\": \"INT\", \"value\": true}}"));
+        assertFalse(record.isValidData());
+        assertTrue(parse("{\"data\": {\"name\": \"v\", \"type\": \"FLOAT\", \"value\": 1}}"));
+        assertFalse(record.isValidData());
+    }
+
+    @Test
+    public void recordIsReset() {
+        assertTrue(parse("{\"beacon\": {\"api\": \"/uconf/\", \"name\": \"Lamp\", \"id\": \"a1\"}}"));
+        assertTrue(parse("{\"data\": {\"name\": \"v\", \"type\": \"STRING\", \"value\": \"on\"}}"));
+        assertFalse(record.beacon);
+        assertNull(record.api);
+        assertEquals("on", record.string_value);
+    }
+}